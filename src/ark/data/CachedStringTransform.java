@@ -0,0 +1,91 @@
+/**
+ * Copyright 2014 Bill McDowell 
+ *
+ * This file is part of theMess (https://github.com/forkunited/theMess)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy 
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package ark.data;
+
+import ark.util.GenerationalCache;
+
+/**
+ * CachedStringTransform wraps a StringTransform (e.g. a clean function 
+ * registered with DataTools), and memoizes its results in a bounded 
+ * cache keyed by the input string.  Since the tokens of most corpora 
+ * follow a Zipfian distribution, almost all calls to a clean function
+ * are for strings that it has already seen.
+ * 
+ * The results are held in an ark.util.GenerationalCache, so frequently
+ * used strings survive, and the cache never holds more than the maximum
+ * number of entries.  The cache is safe to use from multiple threads, and
+ * the wrapped transform must be a pure function of its input.
+ * 
+ * @author Bill McDowell
+ *
+ */
+public class CachedStringTransform implements DataTools.StringTransform {
+	private DataTools.StringTransform transform;
+	private GenerationalCache<String, String> cache;
+	
+	public CachedStringTransform(DataTools.StringTransform transform, int maxSize) {
+		this.transform = transform;
+		this.cache = new GenerationalCache<String, String>(Math.max(2, maxSize));
+	}
+	
+	@Override
+	public String transform(String str) {
+		String transformed = this.cache.get(str);
+		if (transformed != null)
+			return transformed;
+		
+		transformed = this.transform.transform(str);
+		this.cache.put(str, transformed);
+		
+		return transformed;
+	}
+	
+	/**
+	 * @return the wrapped transform's name, so that the cached transform 
+	 * can stand in for it when features are serialized
+	 */
+	@Override
+	public String toString() {
+		return this.transform.toString();
+	}
+	
+	public DataTools.StringTransform getTransform() {
+		return this.transform;
+	}
+	
+	public int getMaxSize() {
+		return this.cache.getMaxSize();
+	}
+	
+	public long getHitCount() {
+		return this.cache.getHitCount();
+	}
+	
+	public long getMissCount() {
+		return this.cache.getMissCount();
+	}
+	
+	public double getHitRate() {
+		return this.cache.getHitRate();
+	}
+	
+	public boolean clear() {
+		return this.cache.clear();
+	}
+}
@@ -22,6 +22,7 @@ import java.util.Collection;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Random;
+import java.util.Set;
 
 import ark.wrapper.BrownClusterer;
 
@@ -48,6 +49,11 @@ import ark.data.Gazetteer;
  * tools to be loaded into memory only once even if you're working with
  * many kinds of datums at the same time.
  * 
+ * Clean functions are wrapped in bounded caches of their results when
+ * they are registered (see ark.data.CachedStringTransform and 
+ * setCleanFnCacheSize), since they're typically called on the same 
+ * tokens over and over by features.
+ * 
  * Currently, for convenience, DataTools just loads everything into 
  * memory upon construction.  If memory conservation becomes particularly
  * important, then possibly this class should be rewritten to only keep 
@@ -57,6 +63,8 @@ import ark.data.Gazetteer;
  *
  */
 public class DataTools {
+	public static final int DEFAULT_CLEAN_FN_CACHE_SIZE = 100000;
+	
 	/**
 	 * Interface for a function that maps a string to another string--for
 	 * example, for cleaning out garbage text before processing by features
@@ -133,7 +141,7 @@ public class DataTools {
 		
 		this.outputWriter = outputWriter;
 		
-		this.cleanFns.put("DefaultCleanFn", new DataTools.StringTransform() {
+		addCleanFn(new DataTools.StringTransform() {
 			public String toString() {
 				return "DefaultCleanFn";
 			}
@@ -212,13 +220,83 @@ public class DataTools {
 		return true;
 	}
 	
+	/**
+	 * Registers a clean function, wrapped in a cache of up to 
+	 * DEFAULT_CLEAN_FN_CACHE_SIZE results (see setCleanFnCacheSize).  The
+	 * clean function must be a pure function of its input.
+	 * 
+	 * @param cleanFn
+	 * @return true if the clean function has been added
+	 */
 	public boolean addCleanFn(DataTools.StringTransform cleanFn) {
-		this.cleanFns.put(cleanFn.toString(), cleanFn);
+		this.cleanFns.put(cleanFn.toString(), new CachedStringTransform(cleanFn, DEFAULT_CLEAN_FN_CACHE_SIZE));
 		return true;
 	}
 	
+	/**
+	 * Changes the size of the cache of results for a registered clean 
+	 * function.  Features that have already retrieved the clean function 
+	 * keep using the old one.
+	 * 
+	 * @param name
+	 * @param maxSize - maximum number of cached results, or 0 to disable 
+	 * the cache
+	 * @return true if the cache size has been set
+	 */
+	public boolean setCleanFnCacheSize(String name, int maxSize) {
+		DataTools.StringTransform cleanFn = this.cleanFns.get(name);
+		if (cleanFn == null)
+			return false;
+		if (cleanFn instanceof CachedStringTransform)
+			cleanFn = ((CachedStringTransform)cleanFn).getTransform();
+		
+		if (maxSize > 0)
+			this.cleanFns.put(name, new CachedStringTransform(cleanFn, maxSize));
+		else
+			this.cleanFns.put(name, cleanFn);
+		return true;
+	}
+	
+	/**
+	 * @param name
+	 * @return the cache of results for a registered clean function (useful
+	 * for checking its hit rate), or null if the clean function isn't 
+	 * cached
+	 */
+	public CachedStringTransform getCleanFnCache(String name) {
+		DataTools.StringTransform cleanFn = this.cleanFns.get(name);
+		if (cleanFn instanceof CachedStringTransform)
+			return (CachedStringTransform)cleanFn;
+		else
+			return null;
+	}
+	
+	/**
+	 * @return the names of the registered clean functions
+	 */
+	public Set<String> getCleanFnNames() {
+		return this.cleanFns.keySet();
+	}
+	
+	/**
+	 * Registers a clean function that cleans strings with StringUtil.clean,
+	 * and then removes tokens that are in the stopWords gazetteer (unless 
+	 * all of the tokens are stop words, in which case the cleaned string
+	 * is returned as it is).
+	 * 
+	 * The cleaned string is tokenized once.  If the gazetteer's own clean 
+	 * function is the default one, then its values are checked directly
+	 * (the tokens of a cleaned string are already clean), and otherwise the
+	 * tokens are cleaned again by the gazetteer.
+	 * 
+	 * @param stopWords
+	 * @return true if the clean function has been added
+	 */
 	public boolean addStopWordsCleanFn(final Gazetteer stopWords) {
-		this.cleanFns.put("StopWordsCleanFn_" + stopWords.getName(), 
+		final Set<String> cleanStopWords = (stopWords.getCleanFn() != null && stopWords.getCleanFn().toString().equals("DefaultCleanFn")) ? 
+												stopWords.getValues() 
+											  : null;
+		return addCleanFn(
 			new DataTools.StringTransform() {
 				public String toString() {
 					return "StopWordsCleanFn_" + stopWords.getName();
@@ -226,15 +304,36 @@ public class DataTools {
 				
 				public String transform(String str) {
 					str = StringUtil.clean(str);
-					String stoppedStr = stopWords.removeTerms(str);
+					
+					// A single token is returned whether or not it's a stop word
+					int tokenEnd = str.indexOf(' ');
+					if (tokenEnd < 0)
+						return str;
+					
+					StringBuilder stoppedStr = new StringBuilder(str.length());
+					int tokenStart = 0;
+					while (tokenStart < str.length()) {
+						if (tokenEnd < 0)
+							tokenEnd = str.length();
+						String token = str.substring(tokenStart, tokenEnd);
+						boolean isStopWord = (cleanStopWords != null) ? cleanStopWords.contains(token) : stopWords.contains(token);
+						if (!isStopWord) {
+							if (stoppedStr.length() > 0)
+								stoppedStr.append(' ');
+							stoppedStr.append(token);
+						}
+						
+						tokenStart = tokenEnd + 1;
+						tokenEnd = str.indexOf(' ', tokenStart);
+					}
+					
 					if (stoppedStr.length() > 0)
-						return stoppedStr;
+						return stoppedStr.toString();
 					else 
 						return str;
 				}
 			}
 		);
-		return true;
 	}
 	
 	public boolean addCollectionFn(DataTools.StringCollectionTransform collectionFn) {
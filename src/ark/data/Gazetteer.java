@@ -81,6 +81,10 @@ public class Gazetteer {
 		return this.name;
 	}
 	
+	public DataTools.StringTransform getCleanFn() {
+		return this.cleanFn;
+	}
+	
 	private String cleanString(String str) {		
 		return this.cleanFn.transform(str);
 	}
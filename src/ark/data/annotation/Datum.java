@@ -20,6 +20,7 @@ package ark.data.annotation;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeSet;
 
 import ark.data.DataTools;
 import ark.data.annotation.nlp.TokenSpan;
@@ -48,6 +49,7 @@ import ark.model.evaluation.metric.SupervisedModelEvaluationAccuracy;
 import ark.model.evaluation.metric.SupervisedModelEvaluationF;
 import ark.model.evaluation.metric.SupervisedModelEvaluationPrecision;
 import ark.model.evaluation.metric.SupervisedModelEvaluationRecall;
+import ark.util.StringUtil;
 
 /**
  * Datum represents a (possibly) labeled datum (training/evaluation
@@ -200,6 +202,58 @@ public abstract class Datum<L> {
 			return this.labelMappings.get(name);
 		}
 		
+		/**
+		 * @param datum
+		 * @return a fingerprint of the content from which features are computed
+		 * for the datum.  This is used to check whether feature values that were 
+		 * cached for the datum in an earlier run are still valid 
+		 * (see ark.data.feature.PersistentFeatureCache).  By default, it's a hash 
+		 * of the datum's id and of the values returned by every extractor 
+		 * registered with these tools.  For token spans, this includes the 
+		 * content fingerprints of their documents (see 
+		 * ark.data.annotation.Document.getContentFingerprint), which cover the
+		 * documents' tokens, PoS tags, and parses, so it changes when the 
+		 * underlying documents are re-tokenized, re-tagged, or re-parsed.  
+		 * Document fingerprints are computed once per document, not once per
+		 * datum.  Datum types whose features depend on content that isn't 
+		 * exposed through extractors should override this.
+		 */
+		public long getDatumFingerprint(D datum) {
+			long fingerprint = StringUtil.hash64(StringUtil.HASH64_SEED, String.valueOf(datum.getId()));
+			
+			for (String name : new TreeSet<String>(this.tokenSpanExtractors.keySet())) {
+				TokenSpan[] tokenSpans = this.tokenSpanExtractors.get(name).extract(datum);
+				fingerprint = StringUtil.hash64(fingerprint, name);
+				if (tokenSpans == null)
+					continue;
+				for (TokenSpan tokenSpan : tokenSpans) {
+					if (tokenSpan.getDocument() != null)
+						fingerprint = StringUtil.hash64(fingerprint, String.valueOf(tokenSpan.getDocument().getContentFingerprint()));
+					fingerprint = StringUtil.hash64(fingerprint, tokenSpan.getSentenceIndex() + "_" + tokenSpan.getStartTokenIndex() + "_" + tokenSpan.getEndTokenIndex());
+				}
+			}
+			
+			for (String name : new TreeSet<String>(this.stringExtractors.keySet())) {
+				String[] strs = this.stringExtractors.get(name).extract(datum);
+				fingerprint = StringUtil.hash64(fingerprint, name);
+				if (strs == null)
+					continue;
+				for (String str : strs)
+					fingerprint = StringUtil.hash64(fingerprint, String.valueOf(str));
+			}
+			
+			for (String name : new TreeSet<String>(this.doubleExtractors.keySet())) {
+				double[] values = this.doubleExtractors.get(name).extract(datum);
+				fingerprint = StringUtil.hash64(fingerprint, name);
+				if (values == null)
+					continue;
+				for (double value : values)
+					fingerprint = StringUtil.hash64(fingerprint, String.valueOf(value));
+			}
+			
+			return fingerprint;
+		}
+		
 		public Feature<D, L> makeFeatureInstance(String genericFeatureName) {
 			return this.genericFeatures.get(genericFeatureName).clone(this, this.dataTools.getParameterEnvironment());
 		}
@@ -31,6 +31,7 @@ import ark.data.annotation.nlp.ConstituencyParse;
 import ark.data.annotation.nlp.DependencyParse;
 import ark.data.annotation.nlp.PoSTag;
 import ark.util.FileUtil;
+import ark.util.StringUtil;
 
 /**
  * 
@@ -50,6 +51,7 @@ public abstract class Document {
 	protected String name;
 	protected Language language;
 	protected String nlpAnnotator;
+	private volatile long contentFingerprint; // 0 until computed by getContentFingerprint
 	
 	public Document() {
 		
@@ -102,6 +104,48 @@ public abstract class Document {
 		return sentencePoSTags;
 	}
 	
+	/**
+	 * @return a 64-bit hash of the document's name, tokens, and annotations
+	 * (PoS tags, dependency parses, and constituency parses), which changes 
+	 * when the document is re-tokenized, re-tagged, or re-parsed (see
+	 * ark.data.annotation.Datum.Tools.getDatumFingerprint).  It's computed
+	 * once, so implementations that change a document's annotations should
+	 * call resetContentFingerprint.
+	 */
+	public long getContentFingerprint() {
+		long contentFingerprint = this.contentFingerprint;
+		if (contentFingerprint != 0)
+			return contentFingerprint;
+		
+		contentFingerprint = StringUtil.hash64(StringUtil.HASH64_SEED, String.valueOf(this.name));
+		contentFingerprint = StringUtil.hash64(contentFingerprint, String.valueOf(this.language));
+		contentFingerprint = StringUtil.hash64(contentFingerprint, String.valueOf(this.nlpAnnotator));
+		int sentenceCount = getSentenceCount();
+		for (int i = 0; i < sentenceCount; i++) {
+			int sentenceTokenCount = getSentenceTokenCount(i);
+			for (int j = 0; j < sentenceTokenCount; j++) {
+				contentFingerprint = StringUtil.hash64(contentFingerprint, String.valueOf(getToken(i, j)));
+				contentFingerprint = StringUtil.hash64(contentFingerprint, String.valueOf(getPoSTag(i, j)));
+			}
+			contentFingerprint = StringUtil.hash64(contentFingerprint, String.valueOf(getDependencyParse(i)));
+			contentFingerprint = StringUtil.hash64(contentFingerprint, String.valueOf(getConstituencyParse(i)));
+		}
+		
+		if (contentFingerprint == 0) // 0 means not computed
+			contentFingerprint = 1;
+		this.contentFingerprint = contentFingerprint;
+		
+		return contentFingerprint;
+	}
+	
+	/**
+	 * Forgets the fingerprint computed by getContentFingerprint, so that it's
+	 * recomputed after the document's annotations have changed
+	 */
+	protected void resetContentFingerprint() {
+		this.contentFingerprint = 0;
+	}
+	
 	public boolean saveToJSONFile(String path) {
 		try {
 			BufferedWriter w = new BufferedWriter(new FileWriter(path));
@@ -155,6 +155,7 @@ public class DocumentInMemory extends Document {
 	public boolean setPoSTags(PoSTag[][] posTags) {
 		if (this.tokens.length != posTags.length)
 			return false;
+		resetContentFingerprint();
 		this.posTags = new PoSTag[this.tokens.length][];
 		for (int i = 0; i < posTags.length; i++) {
 			if (this.tokens[i].length != posTags[i].length)
@@ -169,6 +170,7 @@ public class DocumentInMemory extends Document {
 	}
 	
 	public boolean setDependencyParses(DependencyParse[] dependencyParses) {
+		resetContentFingerprint();
 		this.dependencyParses = new DependencyParse[this.tokens.length];
 		for (int i = 0; i < this.dependencyParses.length; i++)
 			this.dependencyParses[i] = dependencyParses[i].clone(this);
@@ -177,6 +179,7 @@ public class DocumentInMemory extends Document {
 	}
 	
 	public boolean setConstituencyParses(ConstituencyParse[] constituencyParses) {
+		resetContentFingerprint();
 		this.constituencyParses = new ConstituencyParse[this.tokens.length];
 		for (int i = 0; i < this.constituencyParses.length; i++)
 			this.constituencyParses[i] = constituencyParses[i].clone(this);
@@ -228,6 +231,7 @@ public class DocumentInMemory extends Document {
 	
 	@Override
 	protected boolean fromJSON(JSONObject json) {
+		resetContentFingerprint();
 		this.name = json.getString("name");
 		this.language = Language.valueOf(json.getString("language"));
 		
@@ -24,14 +24,22 @@ import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import ark.data.annotation.Datum;
+import ark.data.annotation.nlp.TokenSpan;
+import ark.util.CounterTable;
 import ark.util.Pair;
 import ark.util.SerializationUtil;
+import ark.util.SparseVectorBlock;
+import ark.util.SparseVectorBuilder;
 
 /**
  * Feature represents an abstract feature to be computed on data and
@@ -63,6 +71,10 @@ public abstract class Feature<D extends Datum<L>, L> {
 	// indicator of whether to ignore the feature in data sets so that it
 	// isn't included in models
 	private boolean ignored;
+	// map from datum ids to raw values extracted by the feature independently
+	// of its vocabulary (null unless enabled by setRawValueCaching).  This is 
+	// shared by clones of the feature that have the same parameters
+	private Map<Integer, Object> rawValues;
 	
 	/**
 	 * @param dataSet
@@ -77,6 +89,138 @@ public abstract class Feature<D extends Datum<L>, L> {
 	 */
 	public abstract Map<Integer, Double> computeVector(D datum);
 	
+	/**
+	 * Appends the values of the feature for the given datum to a vector 
+	 * builder, with offset added to each vector index.  This is used by 
+	 * ark.data.feature.FeaturizedDataSet to pack the values of all its 
+	 * features into a single vector without allocating a map for each 
+	 * feature and datum.  By default, this just copies the map returned
+	 * by computeVector(datum), but features can override it to append 
+	 * their values directly (and then implement computeVector(datum) 
+	 * using computeVectorAsMap).
+	 * 
+	 * @param datum
+	 * @param offset
+	 * @param vector
+	 * @return true if the values have been appended to the vector
+	 */
+	public boolean computeVector(D datum, int offset, SparseVectorBuilder vector) {
+		Map<Integer, Double> values = computeVector(datum);
+		for (Entry<Integer, Double> entry : values.entrySet())
+			vector.add(entry.getKey() + offset, entry.getValue());
+		return true;
+	}
+	
+	/**
+	 * Computes the vectors for a block of datums into a columnar buffer, 
+	 * with offset added to each vector index.  The i-th row of the block 
+	 * is set to the values for the i-th datum.  This is used by 
+	 * ark.data.feature.FeaturizedDataSet to featurize blocks of datums one
+	 * feature at a time.  By default, this just calls computeVector for each
+	 * datum, but features can override it to hoist work out of the loop
+	 * over datums (e.g. to reuse scratch buffers, or to visit the datums in
+	 * document order for locality, see getSentenceOrder).
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param block - block that has been reset to hold data.size() rows
+	 * @return true if the vectors have been computed
+	 */
+	public boolean computeVectors(List<D> data, int offset, SparseVectorBlock block) {
+		SparseVectorBuilder entries = block.getEntries();
+		for (int i = 0; i < data.size(); i++) {
+			int start = entries.size();
+			if (!computeVector(data.get(i), offset, entries))
+				return false;
+			block.setRow(i, start, entries.size());
+		}
+		return true;
+	}
+	
+	/**
+	 * @param tokenSpans - token spans for each of a block of datums
+	 * @return positions of the datums ordered by the document and sentence 
+	 * of their first token spans (datums without token spans are first, and
+	 * ties keep their order), so that features computed from sentences can
+	 * visit datums in the same sentence one after another in computeVectors
+	 */
+	protected static Integer[] getSentenceOrder(final TokenSpan[][] tokenSpans) {
+		Integer[] order = new Integer[tokenSpans.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				TokenSpan span1 = (tokenSpans[i1] == null || tokenSpans[i1].length == 0) ? null : tokenSpans[i1][0];
+				TokenSpan span2 = (tokenSpans[i2] == null || tokenSpans[i2].length == 0) ? null : tokenSpans[i2][0];
+				if (span1 == null || span2 == null)
+					return (span1 == null) ? ((span2 == null) ? 0 : -1) : 1;
+				
+				int documentComparison = span1.getDocument().getName().compareTo(span2.getDocument().getName());
+				if (documentComparison != 0)
+					return documentComparison;
+				return Integer.compare(span1.getSentenceIndex(), span2.getSentenceIndex());
+			}
+		});
+		
+		return order;
+	}
+	
+	/**
+	 * @param datum
+	 * @return a map of the values appended by computeVector(datum, 0, builder).
+	 * This adapts features that override the builder version of computeVector 
+	 * to the map version.
+	 */
+	protected Map<Integer, Double> computeVectorAsMap(D datum) {
+		SparseVectorBuilder vector = new SparseVectorBuilder();
+		computeVector(datum, 0, vector);
+		return vector.toMap();
+	}
+	
+	/**
+	 * @return an extractor of the keys (e.g. n-grams) that the feature
+	 * counts over the data to build its vocabulary, or null if the feature
+	 * isn't initialized by counting keys.  If this isn't null, then 
+	 * FeaturizedDataSet.initAndAddFeatures counts the keys for several 
+	 * features in a single scan over the data, and then passes the counts
+	 * to initVocabulary instead of calling init.
+	 */
+	protected FeaturizedDataSet.DatumKeyExtractor<D, String> getVocabularyKeyExtractor() {
+		return null;
+	}
+	
+	/**
+	 * @return a name for a group of features whose key extractors 
+	 * share work (e.g. n-gram features with the same token extractor), 
+	 * so that they should be run on each datum one after the other (see 
+	 * getVocabularyKeyExtractor)
+	 */
+	protected String getVocabularyKeyGroup() {
+		return null;
+	}
+	
+	/**
+	 * @return the minimum number of datums from which a key given by 
+	 * getVocabularyKeyExtractor must be extracted to be kept in the 
+	 * vocabulary (this lets FeaturizedDataSet.countDatumKeys prune rare
+	 * keys while counting)
+	 */
+	protected int getVocabularyMinCount() {
+		return 1;
+	}
+	
+	/**
+	 * @param dataSet
+	 * @param counts - counts of the keys given by getVocabularyKeyExtractor
+	 * over the data set
+	 * @return true if the feature has been initialized for the data set 
+	 * using the counts
+	 */
+	protected boolean initVocabulary(FeaturizedDataSet<D, L> dataSet, CounterTable<String> counts) {
+		return false;
+	}
+	
 	/**
 	 * @return the generic name of the feature in the configuration files.  For
 	 * feature class Feature[X], the generic name should usually be X.
@@ -155,6 +299,16 @@ public abstract class Feature<D extends Datum<L>, L> {
 		return this.ignored;
 	}
 	
+	/**
+	 * @return the reference names of other features whose values this 
+	 * feature uses in its computation (see 
+	 * FeaturizedDataSet.getFeatureVector).  The referenced features must 
+	 * be added to a FeaturizedDataSet before this one.
+	 */
+	public List<String> getFeatureReferences() {
+		return Collections.emptyList();
+	}
+	
 	public Map<Integer, String> getSpecificShortNamesForIndices(Iterable<Integer> indices) {
 		String prefix = getSpecificShortNamePrefix();
 		Map<Integer, String> specificShortNames = new HashMap<Integer, String>();
@@ -186,6 +340,72 @@ public abstract class Feature<D extends Datum<L>, L> {
 		return specificShortNames;
 	}
 	
+	/**
+	 * Enables or disables caching of the raw values that the feature extracts 
+	 * from datums independently of its vocabulary (e.g. the n-gram strings
+	 * or dependency path strings for a datum).  The cache is shared with 
+	 * clones of the feature that have the same parameters, so that when 
+	 * several clones are initialized on different data (e.g. for 
+	 * cross-validation folds), the raw values are only extracted once per 
+	 * datum, and each clone just maps them into its own vocabulary.
+	 * 
+	 * @param cacheRawValues
+	 * @return true if caching has been enabled or disabled
+	 */
+	public boolean setRawValueCaching(boolean cacheRawValues) {
+		if (!cacheRawValues)
+			this.rawValues = null;
+		else if (this.rawValues == null)
+			this.rawValues = new ConcurrentHashMap<Integer, Object>();
+		return true;
+	}
+	
+	/**
+	 * @param datum
+	 * @return the cached raw value extracted from the datum by this feature 
+	 * or one of its clones, or null if there isn't one (see 
+	 * setRawValueCaching).  Cached values are shared, so they shouldn't be 
+	 * modified.
+	 */
+	@SuppressWarnings("unchecked")
+	protected <T> T getCachedRawValue(D datum) {
+		Map<Integer, Object> rawValues = this.rawValues;
+		if (rawValues == null)
+			return null;
+		return (T)rawValues.get(datum.getId());
+	}
+	
+	/**
+	 * @param datum
+	 * @param rawValue
+	 * @return true if the raw value extracted from the datum has been cached 
+	 * (this does nothing if caching isn't enabled)
+	 */
+	protected boolean setCachedRawValue(D datum, Object rawValue) {
+		Map<Integer, Object> rawValues = this.rawValues;
+		if (rawValues == null)
+			return false;
+		rawValues.put(datum.getId(), rawValue);
+		return true;
+	}
+	
+	/**
+	 * Enables or disables retention of the raw values that the feature 
+	 * extracts from datums while it's initialized, so that computing the 
+	 * vectors for the same datums afterward doesn't extract them again.  
+	 * Retained values are discarded once they're used (or when retention is
+	 * disabled), so this is only useful when vectors are computed for the 
+	 * data on which the feature was initialized.  Features that don't retain
+	 * anything ignore this.
+	 * 
+	 * @param retainInitValues
+	 * @return true if the feature supports retention and it has been 
+	 * enabled or disabled
+	 */
+	public boolean setInitValueRetention(boolean retainInitValues) {
+		return false;
+	}
+	
 	public Feature<D, L> clone(Datum.Tools<D, L> datumTools) {
 		return clone(datumTools, null);
 	}
@@ -205,6 +425,9 @@ public abstract class Feature<D extends Datum<L>, L> {
 		clone.referenceName = this.referenceName;
 		clone.ignored = this.ignored;
 		
+		if (this.rawValues != null && toString(false).equals(clone.toString(false)))
+			clone.rawValues = this.rawValues;
+		
 		return clone;
 	}
 
@@ -283,6 +506,16 @@ public abstract class Feature<D extends Datum<L>, L> {
 		}
 	}
 	
+	/**
+	 * @return a string that identifies the vectors computed by this feature,
+	 * used to check whether saved vectors still apply to the feature (see
+	 * FeatureMatrix and PersistentFeatureCache).  By default, this is the
+	 * feature's parameters and vocabulary (toString(true)).
+	 */
+	public String getIdentityString() {
+		return toString(true);
+	}
+	
 	public String toString() {
 		return toString(false);
 	}
@@ -18,14 +18,24 @@
 
 package ark.data.feature;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools;
-import ark.util.BidirectionalLookupTable;
 import ark.util.CounterTable;
+import ark.util.LongIntHashMap;
+import ark.util.SparseVector;
+import ark.util.SparseVectorBuilder;
+import ark.util.Vocabulary;
 
 /**
  * For a datum d, FeatureConjunction computes a vector whose elements are given by
@@ -35,13 +45,38 @@ import ark.util.CounterTable;
  * The referenced features are given by a list of feature 'referenceNames'
  * used within a FeaturizedDataSet constructed from an experiment configuration file.
  * 
+ * Each element of the product is identified by the tuple of indices of its 
+ * components in the referenced features' vocabularies, packed into a long
+ * (as a mixed-radix number whose digits are the component indices), and 
+ * the vocabulary maps these keys to indices.  The referenced features' 
+ * vectors are taken from the data set (see 
+ * FeaturizedDataSet.getFeatureVector), so each referenced feature is 
+ * only computed once per datum, and the names of elements (the names of their components separated by 
+ * '//') are only built for the elements kept in the vocabulary.  If the 
+ * product of the referenced features' vocabulary sizes is too large to 
+ * pack the tuples into longs, then the elements are identified by their 
+ * names instead.
+ * 
+ * Elements are columns named by their components' terms, so if a 
+ * referenced feature has several indices with the same term (e.g. hashed 
+ * n-grams without sampled names), then those indices are mapped to the 
+ * first of them before packing the tuples.  This way elements with the 
+ * same name share a single key, and their counts are merged the same way
+ * as when the elements are identified by name.  If a referenced feature
+ * has a term containing the '//' separator, then different tuples can 
+ * have the same name, so the elements are identified by their names.
+ * 
  * @author Bill McDowell
  *
  * @param <D> datum type
  * @param <L> datum label type
  */
 public class FeatureConjunction<D extends Datum<L>, L> extends Feature<D, L> {
-	private BidirectionalLookupTable<String, Integer> vocabulary;
+	private Vocabulary vocabulary;
+	private LongIntHashMap tupleVocabulary; // Maps packed tuple keys to vocabulary indices (null if tuples aren't packed)
+	private long[] tupleRadixMultipliers; // Multiplier of each referenced feature's index in a packed tuple key
+	private int[][] termIndices; // Maps each referenced feature's indices to the first index with the same term (null for features without repeated terms)
+	private boolean hasRepeatedTerms;
 	private int minFeatureOccurrence;
 	private String[] featureReferences;
 	private String[] parameterNames = {"minFeatureOccurrence", "featureReferences"};
@@ -49,36 +84,236 @@ public class FeatureConjunction<D extends Datum<L>, L> extends Feature<D, L> {
 	private FeaturizedDataSet<D, L> dataSet; // Has other initialized features to be conjoined
 	
 	public FeatureConjunction() {
-		this.vocabulary = new BidirectionalLookupTable<String, Integer>();
+		this.vocabulary = new Vocabulary();
 	}
 	
 	@Override
 	public boolean init(FeaturizedDataSet<D, L> dataSet) {
 		this.dataSet = dataSet;
-
-		CounterTable<String> counter = new CounterTable<String>();
-		for (D datum : this.dataSet) {
-			Map<String, Double> conjunction = conjunctionForDatum(datum);
-			for (String key : conjunction.keySet())
-				counter.incrementCount(key);
-		}
+		this.tupleVocabulary = null;
+		this.tupleRadixMultipliers = computeTupleRadixMultipliers();
+		if (this.tupleRadixMultipliers == null)
+			return initByName();
+		
+		this.termIndices = computeTermIndices();
+		if (this.termIndices == null)
+			return initByName();
+		
+		this.hasRepeatedTerms = false;
+		for (int i = 0; i < this.termIndices.length; i++)
+			if (this.termIndices[i] != null)
+				this.hasRepeatedTerms = true;
+		
+		CounterTable<Long> counter = this.dataSet.countDatumKeys(new FeaturizedDataSet.DatumKeyExtractor<D, Long>() {
+			public Iterable<Long> extractKeys(D datum) {
+				// Keys repeat within a datum only if components share terms, and
+				// each name should only be counted once per datum
+				final Collection<Long> keys = (hasRepeatedTerms) ? new HashSet<Long>() : new ArrayList<Long>();
+				conjoin(datum, new ConjunctionVisitor() {
+					public boolean visit(long key, double value) {
+						keys.add(key);
+						return true;
+					}
+				});
+				return keys;
+			}
+		}, this.minFeatureOccurrence);
+		if (counter == null)
+			return false;
 		
 		counter.removeCountsLessThan(this.minFeatureOccurrence);
-		this.vocabulary = new BidirectionalLookupTable<String, Integer>(counter.buildIndex());
+		
+		// Number the tuples by their names so that the vocabulary is ordered
+		// the same way as when the tuples are identified by name (each key
+		// has a distinct name, see computeTermIndices)
+		List<Long> keys = counter.getItems();
+		Map<String, Long> namesToKeys = new HashMap<String, Long>(keys.size()*2);
+		for (Long key : keys)
+			namesToKeys.put(getTupleName(key), key);
+		List<String> names = new ArrayList<String>(namesToKeys.keySet());
+		Collections.sort(names);
+		
+		this.vocabulary = new Vocabulary(names);
+		this.tupleVocabulary = new LongIntHashMap(names.size());
+		for (int i = 0; i < names.size(); i++)
+			this.tupleVocabulary.put(namesToKeys.get(names.get(i)), i);
+		
+		return true;
+	}
+	
+	private boolean initByName() {
+		CounterTable<String> counter = this.dataSet.countDatumKeys(new FeaturizedDataSet.DatumKeyExtractor<D, String>() {
+			public Iterable<String> extractKeys(D datum) {
+				return conjunctionForDatum(datum).keySet();
+			}
+		}, this.minFeatureOccurrence);
+		if (counter == null)
+			return false;
+		
+		counter.removeCountsLessThan(this.minFeatureOccurrence);
+		this.vocabulary = new Vocabulary(counter.getSortedItems());
 		
 		return true;
 	}
 
 	@Override
 	public Map<Integer, Double> computeVector(D datum) {
-		Map<String, Double> unfilteredConjunction = conjunctionForDatum(datum);
-		Map<Integer, Double> vector = new HashMap<Integer, Double>();
-		for (Entry<String, Double> entry : unfilteredConjunction.entrySet()) {
-			if (this.vocabulary.containsKey(entry.getKey()))
-				vector.put(this.vocabulary.get(entry.getKey()), entry.getValue());
+		return computeVectorAsMap(datum);
+	}
+	
+	@Override
+	public boolean computeVector(D datum, final int offset, final SparseVectorBuilder vector) {
+		if (this.tupleVocabulary == null) {
+			Map<String, Double> unfilteredConjunction = conjunctionForDatum(datum);
+			for (Entry<String, Double> entry : unfilteredConjunction.entrySet()) {
+				int index = this.vocabulary.get(entry.getKey());
+				if (index >= 0)
+					vector.add(index + offset, entry.getValue());
+			}
+			return true;
 		}
 		
-		return vector;
+		final LongIntHashMap tupleVocabulary = this.tupleVocabulary;
+		if (!this.hasRepeatedTerms) {
+			return conjoin(datum, new ConjunctionVisitor() {
+				public boolean visit(long key, double value) {
+					int index = tupleVocabulary.get(key, -1);
+					if (index >= 0)
+						vector.add(index + offset, value);
+					return true;
+				}
+			});
+		}
+		
+		// Elements with the same name keep a single value, as when they are
+		// identified by name
+		final Map<Integer, Double> values = new LinkedHashMap<Integer, Double>();
+		if (!conjoin(datum, new ConjunctionVisitor() {
+			public boolean visit(long key, double value) {
+				int index = tupleVocabulary.get(key, -1);
+				if (index >= 0)
+					values.put(index, value);
+				return true;
+			}
+		}))
+			return false;
+		
+		for (Entry<Integer, Double> entry : values.entrySet())
+			vector.add(entry.getKey() + offset, entry.getValue());
+		return true;
+	}
+	
+	/**
+	 * ConjunctionVisitor is called on each element of the tensor product
+	 * for a datum with its packed tuple key and value.
+	 */
+	private interface ConjunctionVisitor {
+		boolean visit(long key, double value);
+	}
+	
+	/**
+	 * @return the multiplier of each referenced feature's vocabulary index
+	 * in a packed tuple key, or null if the product of the vocabulary sizes
+	 * doesn't fit in a long
+	 */
+	private long[] computeTupleRadixMultipliers() {
+		long[] multipliers = new long[this.featureReferences.length];
+		long multiplier = 1;
+		for (int i = 0; i < this.featureReferences.length; i++) {
+			multipliers[i] = multiplier;
+			long size = Math.max(1, this.dataSet.getFeatureByReferenceName(this.featureReferences[i]).getVocabularySize());
+			if (multiplier > Long.MAX_VALUE / size)
+				return null;
+			multiplier *= size;
+		}
+		return multipliers;
+	}
+	
+	/**
+	 * @return for each referenced feature, a map from its vocabulary indices 
+	 * to the first index with the same term, or null if the feature's terms
+	 * don't repeat.  With these maps, tuples have the same name only if they
+	 * have the same key, unless a term contains the '//' separator, in which 
+	 * case null is returned (and the tuples should be identified by name).
+	 */
+	private int[][] computeTermIndices() {
+		int[][] termIndices = new int[this.featureReferences.length][];
+		for (int i = 0; i < this.featureReferences.length; i++) {
+			Feature<D, L> feature = this.dataSet.getFeatureByReferenceName(this.featureReferences[i]);
+			int size = feature.getVocabularySize();
+			int[] indices = new int[size];
+			Map<String, Integer> firstIndices = new HashMap<String, Integer>();
+			boolean repeated = false;
+			for (int j = 0; j < size; j++) {
+				String term = feature.getVocabularyTerm(j);
+				if (term != null && term.contains("//"))
+					return null;
+				Integer firstIndex = firstIndices.get(term);
+				if (firstIndex == null) {
+					firstIndices.put(term, j);
+					indices[j] = j;
+				} else {
+					indices[j] = firstIndex;
+					repeated = true;
+				}
+			}
+			
+			if (repeated)
+				termIndices[i] = indices;
+		}
+		return termIndices;
+	}
+	
+	/**
+	 * Passes each element of the tensor product of the referenced 
+	 * features' vectors for the datum to the visitor
+	 */
+	private boolean conjoin(D datum, ConjunctionVisitor visitor) {
+		SparseVector[] components = new SparseVector[this.featureReferences.length];
+		for (int i = 0; i < this.featureReferences.length; i++) {
+			components[i] = this.dataSet.getFeatureVector(datum, this.featureReferences[i]);
+			if (components[i] == null)
+				return false;
+			if (components[i].size() == 0)
+				return true;
+		}
+		
+		// Step through the tuples like an odometer over the components' entries
+		int[] positions = new int[this.featureReferences.length];
+		while (true) {
+			long key = 0;
+			double value = 1.0;
+			for (int i = 0; i < positions.length; i++) {
+				int index = components[i].getIndex(positions[i]);
+				if (this.termIndices[i] != null)
+					index = this.termIndices[i][index];
+				key += index*this.tupleRadixMultipliers[i];
+				value *= components[i].getValue(positions[i]);
+			}
+			
+			if (!visitor.visit(key, value))
+				return false;
+			
+			int i = positions.length - 1;
+			while (i >= 0 && positions[i] == components[i].size() - 1) {
+				positions[i] = 0;
+				i--;
+			}
+			if (i < 0)
+				return true;
+			positions[i]++;
+		}
+	}
+	
+	private String getTupleName(long key) {
+		StringBuilder name = new StringBuilder();
+		for (int i = this.featureReferences.length - 1; i >= 0; i--) {
+			int index = (int)(key / this.tupleRadixMultipliers[i]);
+			key -= index*this.tupleRadixMultipliers[i];
+			Feature<D, L> feature = this.dataSet.getFeatureByReferenceName(this.featureReferences[i]);
+			name.insert(0, "//" + feature.getVocabularyTerm(index));
+		}
+		return name.toString();
 	}
 	
 	private Map<String, Double> conjunctionForDatum(D datum) {
@@ -86,13 +321,12 @@ public class FeatureConjunction<D extends Datum<L>, L> extends Feature<D, L> {
 		conjunction.put("", 1.0);
 		for (int i = 0; i < this.featureReferences.length; i++) {
 			Feature<D, L> feature = this.dataSet.getFeatureByReferenceName(this.featureReferences[i]);
-			Map<Integer, Double> values = feature.computeVector(datum);
-			Map<Integer, String> vocab = feature.getVocabularyForIndices(values.keySet());
+			SparseVector values = this.dataSet.getFeatureVector(datum, feature);
 			Map<String, Double> nextConjunction = new HashMap<String, Double>();
 			
 			for (Entry<String, Double> conjunctionEntry : conjunction.entrySet()) {
-				for (Entry<Integer, String> vocabEntry : vocab.entrySet()) {
-					nextConjunction.put(conjunctionEntry.getKey() + "//" + vocabEntry.getValue(), conjunctionEntry.getValue()*values.get(vocabEntry.getKey()));
+				for (int j = 0; j < values.size(); j++) {
+					nextConjunction.put(conjunctionEntry.getKey() + "//" + feature.getVocabularyTerm(values.getIndex(j)), conjunctionEntry.getValue()*values.getValue(j));
 				}
 			}
 			
@@ -102,6 +336,13 @@ public class FeatureConjunction<D extends Datum<L>, L> extends Feature<D, L> {
 		return conjunction;
 	}
 
+	@Override
+	public List<String> getFeatureReferences() {
+		if (this.featureReferences == null)
+			return Collections.emptyList();
+		return Arrays.asList(this.featureReferences);
+	}
+
 	@Override
 	public String getGenericName() {
 		return "Conjunction";
@@ -24,8 +24,10 @@ import ark.data.annotation.Datum;
 import ark.data.annotation.nlp.DependencyParse;
 import ark.data.annotation.nlp.DependencyParse.DependencyPath;
 import ark.data.annotation.nlp.TokenSpan;
-import ark.util.BidirectionalLookupTable;
 import ark.util.CounterTable;
+import ark.util.SparseVectorBlock;
+import ark.util.SparseVectorBuilder;
+import ark.util.Vocabulary;
 
 /**
  * FeatureDependencyPath computes paths in dependency parse trees
@@ -53,7 +55,7 @@ import ark.util.CounterTable;
  * 
  */
 public class FeatureDependencyPath<D extends Datum<L>, L> extends Feature<D, L> {
-	protected BidirectionalLookupTable<String, Integer> vocabulary;
+	protected Vocabulary vocabulary;
 	
 	protected int minFeatureOccurrence;
 	protected Datum.Tools.TokenSpanExtractor<D, L> sourceTokenExtractor;
@@ -62,29 +64,44 @@ public class FeatureDependencyPath<D extends Datum<L>, L> extends Feature<D, L>
 	protected String[] parameterNames = {"minFeatureOccurrence", "sourceTokenExtractor", "targetTokenExtractor", "useRelationTypes"};
 	
 	public FeatureDependencyPath(){
-		this.vocabulary = new BidirectionalLookupTable<String, Integer>();
+		this.vocabulary = new Vocabulary();
 	}
 	
 	@Override
 	public boolean init(FeaturizedDataSet<D, L> dataSet) {
-		CounterTable<String> counter = new CounterTable<String>();
-		for (D datum : dataSet) {
-			Set<String> paths = getPathsForDatum(datum);
-			for (String path : paths) {
-				counter.incrementCount(path);
+		CounterTable<String> counter = dataSet.countDatumKeys(new FeaturizedDataSet.DatumKeyExtractor<D, String>() {
+			public Iterable<String> extractKeys(D datum) {
+				return getPathsForDatum(datum);
 			}
-		}
+		}, this.minFeatureOccurrence);
+		if (counter == null)
+			return false;
 		
 		counter.removeCountsLessThan(this.minFeatureOccurrence);
-		this.vocabulary = new BidirectionalLookupTable<String, Integer>(counter.buildIndex());
+		this.vocabulary = new Vocabulary(counter.getSortedItems());
 		
 		return true;
 	}
 	
 	private Set<String> getPathsForDatum(D datum){
-		Set<String> paths = new HashSet<String>();
+		return getPathsForDatum(datum, null);
+	}
+	
+	/**
+	 * @param datum
+	 * @param sourceTokenSpans - source token spans already extracted from 
+	 * the datum (or null)
+	 * @return the paths between the datum's source and target token spans
+	 */
+	private Set<String> getPathsForDatum(D datum, TokenSpan[] sourceTokenSpans){
+		Set<String> paths = getCachedRawValue(datum);
+		if (paths != null)
+			return paths;
+		
+		paths = new HashSet<String>();
 		
-		TokenSpan[] sourceTokenSpans = this.sourceTokenExtractor.extract(datum);
+		if (sourceTokenSpans == null)
+			sourceTokenSpans = this.sourceTokenExtractor.extract(datum);
 		TokenSpan[] targetTokenSpans = this.targetTokenExtractor.extract(datum);
 		
 		for (TokenSpan sourceSpan : sourceTokenSpans) {
@@ -95,6 +112,8 @@ public class FeatureDependencyPath<D extends Datum<L>, L> extends Feature<D, L>
 				paths.add(path.toString(this.useRelationTypes));
 			}
 		}
+		
+		setCachedRawValue(datum, paths);
 		return paths;
 	}
 	
@@ -120,15 +139,49 @@ public class FeatureDependencyPath<D extends Datum<L>, L> extends Feature<D, L>
 	
 	@Override
 	public Map<Integer, Double> computeVector(D datum) {
+		return computeVectorAsMap(datum);
+	}
+	
+	@Override
+	public boolean computeVector(D datum, int offset, SparseVectorBuilder vector) {
 		Set<String> pathsForDatum = getPathsForDatum(datum);
-		Map<Integer, Double> vector = new HashMap<Integer, Double>();
 		
 		for (String path : pathsForDatum) {
-			if (this.vocabulary.containsKey(path))
-				vector.put(this.vocabulary.get(path), 1.0);		
+			int index = this.vocabulary.get(path);
+			if (index >= 0)
+				vector.add(index + offset, 1.0);		
 		}
 
-		return vector;
+		return true;
+	}
+	
+	/**
+	 * Computes the vectors for a block of datums in the order of their 
+	 * sentences (see Feature.getSentenceOrder), so that datums in the same
+	 * sentence are visited together while the sentence's dependency parse is 
+	 * recent.
+	 */
+	@Override
+	public boolean computeVectors(List<D> data, int offset, SparseVectorBlock block) {
+		TokenSpan[][] sourceTokenSpans = new TokenSpan[data.size()][];
+		for (int i = 0; i < sourceTokenSpans.length; i++)
+			sourceTokenSpans[i] = this.sourceTokenExtractor.extract(data.get(i));
+		Integer[] order = getSentenceOrder(sourceTokenSpans);
+		
+		Vocabulary vocabulary = this.vocabulary;
+		SparseVectorBuilder entries = block.getEntries();
+		for (int i = 0; i < order.length; i++) {
+			int row = order[i];
+			int start = entries.size();
+			for (String path : getPathsForDatum(data.get(row), sourceTokenSpans[row])) {
+				int index = vocabulary.get(path);
+				if (index >= 0)
+					entries.add(index + offset, 1.0);
+			}
+			block.setRow(row, start, entries.size());
+		}
+		
+		return true;
 	}
 
 
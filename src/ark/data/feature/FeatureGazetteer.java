@@ -18,10 +18,13 @@ package ark.data.feature;
  */
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import ark.data.Gazetteer;
 import ark.data.annotation.Datum;
+import ark.util.SparseVectorBlock;
+import ark.util.SparseVectorBuilder;
 
 /**
  * FeatureGazetteer computes gazetteer features.  For a datum d, 
@@ -60,16 +63,71 @@ public abstract class FeatureGazetteer<D extends Datum<L>, L> extends Feature<D,
 	@Override
 	public Map<Integer, Double> computeVector(D datum) {
 		Map<Integer, Double> vector = new HashMap<Integer, Double>(1);
-		vector.put(0, computeExtremum(datum));
+		vector.put(0, getExtremum(datum));
 		return vector;
 	}
+	
+	@Override
+	public boolean computeVector(D datum, int offset, SparseVectorBuilder vector) {
+		return vector.add(offset, getExtremum(datum));
+	}
+	
+	/**
+	 * Computes the values for a block of datums, computing the extremum 
+	 * for each distinct extracted string only once per block, since 
+	 * strings often repeat across datums (e.g. mentions of the same 
+	 * entity), and some gazetteer features compare each string against the
+	 * whole gazetteer.
+	 */
+	@Override
+	public boolean computeVectors(List<D> data, int offset, SparseVectorBlock block) {
+		Map<String, Double> stringExtrema = new HashMap<String, Double>();
+		SparseVectorBuilder entries = block.getEntries();
+		for (int i = 0; i < data.size(); i++) {
+			D datum = data.get(i);
+			Double extremum = getCachedRawValue(datum);
+			if (extremum == null) {
+				extremum = computeExtremum(this.stringExtractor.extract(datum), stringExtrema);
+				setCachedRawValue(datum, extremum);
+			}
+			
+			int start = entries.size();
+			entries.add(offset, extremum);
+			block.setRow(i, start, entries.size());
+		}
+		
+		return true;
+	}
+	
+	private double getExtremum(D datum) {
+		Double extremum = getCachedRawValue(datum);
+		if (extremum == null) {
+			extremum = computeExtremum(datum);
+			setCachedRawValue(datum, extremum);
+		}
+		return extremum;
+	}
 
 	
 	protected double computeExtremum(D datum) {
-		String[] strs = this.stringExtractor.extract(datum);
+		return computeExtremum(this.stringExtractor.extract(datum), null);
+	}
+	
+	/**
+	 * @param strs
+	 * @param stringExtrema - extrema already computed for strings (or null).
+	 * Newly computed extrema are added to it.
+	 * @return the extremum over the strings
+	 */
+	private double computeExtremum(String[] strs, Map<String, Double> stringExtrema) {
 		double extremum = (this.extremumType == FeatureGazetteer.ExtremumType.Maximum) ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
 		for (String str : strs) {
-			double curExtremum = computeExtremum(str);
+			Double curExtremum = (stringExtrema == null) ? null : stringExtrema.get(str);
+			if (curExtremum == null) {
+				curExtremum = computeExtremum(str);
+				if (stringExtrema != null)
+					stringExtrema.put(str, curExtremum);
+			}
 			if ((this.extremumType == FeatureGazetteer.ExtremumType.Maximum && curExtremum > extremum)
 					|| (this.extremumType == FeatureGazetteer.ExtremumType.Minimum && curExtremum < extremum))
 				extremum = curExtremum;	
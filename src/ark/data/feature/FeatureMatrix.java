@@ -0,0 +1,436 @@
+/**
+ * Copyright 2014 Bill McDowell 
+ *
+ * This file is part of theMess (https://github.com/forkunited/theMess)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy 
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package ark.data.feature;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ark.data.annotation.Datum;
+import ark.util.SparseVector;
+
+/**
+ * FeatureMatrix represents the feature vectors of a FeaturizedDataSet
+ * frozen into a compressed sparse row (CSR) matrix.  The rows are 
+ * the datums in order of id, and the non-zero entries of all rows are
+ * packed into flat primitive arrays of column indices and values.  Row
+ * i consists of the entries from rowOffsets[i] (inclusive) to 
+ * rowOffsets[i+1] (exclusive).
+ * 
+ * Entries with value 1.0 are stored as column indices only (see 
+ * ark.util.SparseVector), so the values array is indexed separately by 
+ * rowValueOffsets.  The first rowValueOffsets[i+1] - rowValueOffsets[i]
+ * entries of row i have explicit values starting at rowValueOffsets[i], 
+ * and the rest of the row's entries have value 1.0.
+ * 
+ * Compared with storing a map from indices to values for each datum, this 
+ * avoids boxing, hashing, and per-entry object overhead, and rows
+ * can be iterated without jumping around memory.
+ * 
+ * A matrix can be serialized to a binary file, and the file can 
+ * be memory-mapped by the map method so that loading the matrix 
+ * doesn't require deserialization, and so that several processes
+ * on the same machine can share a single copy of the matrix through the
+ * OS page cache.  The file format is (big-endian):
+ * 
+ * int magic, int version, int rowCount, int columnCount, int nonZeroCount, int valueCount, int featureCount
+ * featureCount x (int startIndex, int vocabularyHash, int nameLength, byte[nameLength] name)
+ * padding to a multiple of 8 bytes
+ * long[rowCount] rowDatumFingerprints
+ * int[rowCount] rowDatumIds, int[rowCount + 1] rowOffsets, int[rowCount + 1] rowValueOffsets, 
+ * int[nonZeroCount] columnIndices
+ * padding to a multiple of 8 bytes
+ * double[valueCount] values
+ * 
+ * The feature descriptions give the layout of the features
+ * within the columns (see isCompatibleWith) so that a mapped 
+ * matrix can be checked against the features of a data set before
+ * it's used.  Similarly, each row is stored with the fingerprint of its 
+ * datum's content (see Datum.Tools.getDatumFingerprint), so a matrix
+ * isn't used for a data set whose datums have changed since the matrix was
+ * computed (e.g. when a corpus is re-annotated, but keeps its datum ids). 
+ * Each section of the file is mapped separately, 
+ * so each section is limited to 2GB.
+ * 
+ * @author Bill McDowell
+ *
+ */
+public class FeatureMatrix {
+	private static final int MAGIC = 0x41524B4D;
+	private static final int VERSION = 3;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private IntBuffer rowDatumIds; // Sorted datum ids for each row
+	private LongBuffer rowDatumFingerprints; // Content fingerprints of the datums for each row
+	private IntBuffer rowOffsets;
+	private IntBuffer columnIndices;
+	private IntBuffer rowValueOffsets;
+	private DoubleBuffer values;
+	private int columnCount;
+	
+	// Layout of features within the columns
+	private int[] featureStartIndices;
+	private int[] featureVocabularyHashes;
+	private String[] featureNames;
+	
+	// Counts of rows served by datum id (to compare with feature vector
+	// cache hits and misses when the matrix is used instead of the cache)
+	private AtomicLong rowReads = new AtomicLong();
+	private AtomicLong rowMisses = new AtomicLong();
+	
+	public FeatureMatrix(int[] rowDatumIds, long[] rowDatumFingerprints, int[] rowOffsets, int[] columnIndices, int[] rowValueOffsets, double[] values, int columnCount, FeaturizedDataSet<?, ?> data) {
+		this(IntBuffer.wrap(rowDatumIds), LongBuffer.wrap(rowDatumFingerprints), IntBuffer.wrap(rowOffsets), IntBuffer.wrap(columnIndices), IntBuffer.wrap(rowValueOffsets), DoubleBuffer.wrap(values), columnCount, null, null, null);
+		
+		List<Integer> startIndices = data.getFeatureStartIndices();
+		this.featureStartIndices = new int[startIndices.size()];
+		this.featureVocabularyHashes = new int[startIndices.size()];
+		this.featureNames = new String[startIndices.size()];
+		for (int i = 0; i < startIndices.size(); i++) {
+			Feature<?, ?> feature = data.getFeature(startIndices.get(i));
+			this.featureStartIndices[i] = startIndices.get(i);
+			this.featureVocabularyHashes[i] = getVocabularyHash(feature);
+			this.featureNames[i] = feature.toString(false);
+		}
+	}
+	
+	private FeatureMatrix(IntBuffer rowDatumIds, LongBuffer rowDatumFingerprints, IntBuffer rowOffsets, IntBuffer columnIndices, IntBuffer rowValueOffsets, DoubleBuffer values, int columnCount, int[] featureStartIndices, int[] featureVocabularyHashes, String[] featureNames) {
+		this.rowDatumIds = rowDatumIds;
+		this.rowDatumFingerprints = rowDatumFingerprints;
+		this.rowOffsets = rowOffsets;
+		this.columnIndices = columnIndices;
+		this.rowValueOffsets = rowValueOffsets;
+		this.values = values;
+		this.columnCount = columnCount;
+		this.featureStartIndices = featureStartIndices;
+		this.featureVocabularyHashes = featureVocabularyHashes;
+		this.featureNames = featureNames;
+	}
+	
+	public int getRowCount() {
+		return this.rowDatumIds.limit();
+	}
+	
+	public int getColumnCount() {
+		return this.columnCount;
+	}
+	
+	public int getNonZeroCount() {
+		return this.rowOffsets.get(getRowCount());
+	}
+	
+	/**
+	 * @return the number of non-zero entries that have explicit values 
+	 * (the others have value 1.0)
+	 */
+	public int getValueCount() {
+		return this.rowValueOffsets.get(getRowCount());
+	}
+	
+	/**
+	 * @param datumId
+	 * @return the index of the row for the datum with the given id, or -1
+	 * if the matrix has no row for the datum
+	 */
+	public int getRowIndex(int datumId) {
+		int low = 0;
+		int high = getRowCount() - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int middleId = this.rowDatumIds.get(middle);
+			if (middleId < datumId)
+				low = middle + 1;
+			else if (middleId > datumId)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -1;
+	}
+	
+	public int getRowDatumId(int rowIndex) {
+		return this.rowDatumIds.get(rowIndex);
+	}
+	
+	/**
+	 * @param rowIndex
+	 * @return a view of the given row (the entries aren't copied).  If 
+	 * the matrix is memory-mapped, the entries are read from the mapped
+	 * file when they're accessed.
+	 */
+	public SparseVector getRow(int rowIndex) {
+		int offset = this.rowOffsets.get(rowIndex);
+		int length = this.rowOffsets.get(rowIndex + 1) - offset;
+		int valueOffset = this.rowValueOffsets.get(rowIndex);
+		int valueCount = this.rowValueOffsets.get(rowIndex + 1) - valueOffset;
+		if (this.columnIndices.hasArray() && this.values.hasArray())
+			return new SparseVector(this.columnIndices.array(), this.values.array(), offset, length, valueOffset, valueCount);
+		return new SparseVector(this.columnIndices, this.values, offset, length, valueOffset, valueCount);
+	}
+	
+	/**
+	 * @param datumId
+	 * @return the row for the datum with the given id, or null if
+	 * there is no such row
+	 */
+	public SparseVector getRowForDatum(int datumId) {
+		int rowIndex = getRowIndex(datumId);
+		if (rowIndex < 0) {
+			this.rowMisses.incrementAndGet();
+			return null;
+		}
+		this.rowReads.incrementAndGet();
+		return getRow(rowIndex);
+	}
+	
+	/**
+	 * @return the number of rows that have been served by 
+	 * getRowForDatum
+	 */
+	public long getRowReadCount() {
+		return this.rowReads.get();
+	}
+	
+	/**
+	 * @return the number of requests to getRowForDatum for datums 
+	 * that have no row
+	 */
+	public long getRowMissCount() {
+		return this.rowMisses.get();
+	}
+	
+	/**
+	 * @param data
+	 * @return true if the columns of the matrix have the same layout as
+	 * the features in the data set (the features have the same starting 
+	 * indices, parameters, and vocabularies), and the matrix has a row
+	 * for every datum in the data set computed from the datum's current 
+	 * content (the fingerprints match)
+	 */
+	public <D extends Datum<L>, L> boolean isCompatibleWith(FeaturizedDataSet<D, L> data) {
+		if (data.getFeatureVocabularySize() != this.columnCount)
+			return false;
+		
+		List<Integer> startIndices = data.getFeatureStartIndices();
+		if (startIndices.size() != this.featureStartIndices.length)
+			return false;
+		
+		for (int i = 0; i < startIndices.size(); i++) {
+			Feature<?, ?> feature = data.getFeature(startIndices.get(i));
+			if (startIndices.get(i) != this.featureStartIndices[i]
+					|| !feature.toString(false).equals(this.featureNames[i])
+					|| getVocabularyHash(feature) != this.featureVocabularyHashes[i])
+				return false;
+		}
+		
+		Datum.Tools<D, L> datumTools = data.getDatumTools();
+		for (D datum : data) {
+			int rowIndex = getRowIndex(datum.getId());
+			if (rowIndex < 0 || this.rowDatumFingerprints.get(rowIndex) != datumTools.getDatumFingerprint(datum))
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return an approximation of the number of bytes taken up by the
+	 * matrix's arrays
+	 */
+	public long getSizeInBytes() {
+		return 4L*this.rowDatumIds.limit() 
+				+ 8L*this.rowDatumFingerprints.limit()
+				+ 4L*this.rowOffsets.limit() 
+				+ 4L*this.columnIndices.limit() 
+				+ 4L*this.rowValueOffsets.limit() 
+				+ 8L*this.values.limit();
+	}
+	
+	/**
+	 * The matrix is written to a temporary file in the same directory, 
+	 * which is then renamed to the given file, so other processes never
+	 * map a partially written matrix, and processes that have already 
+	 * mapped an earlier version of the file keep their mappings (the old
+	 * file isn't truncated).
+	 * 
+	 * @param file
+	 * @return true if the matrix has been written to the file in the binary 
+	 * format that can be memory-mapped by the map method
+	 */
+	public boolean serialize(File file) {
+		File tempFile = null;
+		try {
+			tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			long position = 0;
+			
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeInt(getRowCount());
+			output.writeInt(this.columnCount);
+			output.writeInt(getNonZeroCount());
+			output.writeInt(getValueCount());
+			output.writeInt(this.featureStartIndices.length);
+			position += 28;
+			
+			for (int i = 0; i < this.featureStartIndices.length; i++) {
+				byte[] name = this.featureNames[i].getBytes(UTF8);
+				output.writeInt(this.featureStartIndices[i]);
+				output.writeInt(this.featureVocabularyHashes[i]);
+				output.writeInt(name.length);
+				output.write(name);
+				position += 12 + name.length;
+			}
+			
+			position = writePadding(output, position);
+			
+			for (int i = 0; i < this.rowDatumFingerprints.limit(); i++)
+				output.writeLong(this.rowDatumFingerprints.get(i));
+			position += 8L*this.rowDatumFingerprints.limit();
+			
+			for (int i = 0; i < this.rowDatumIds.limit(); i++)
+				output.writeInt(this.rowDatumIds.get(i));
+			for (int i = 0; i < this.rowOffsets.limit(); i++)
+				output.writeInt(this.rowOffsets.get(i));
+			for (int i = 0; i < this.rowValueOffsets.limit(); i++)
+				output.writeInt(this.rowValueOffsets.get(i));
+			for (int i = 0; i < this.columnIndices.limit(); i++)
+				output.writeInt(this.columnIndices.get(i));
+			position += 4L*(this.rowDatumIds.limit() + this.rowOffsets.limit() + this.rowValueOffsets.limit() + this.columnIndices.limit());
+			
+			writePadding(output, position);
+			
+			for (int i = 0; i < this.values.limit(); i++)
+				output.writeDouble(this.values.get(i));
+			
+			output.close();
+			
+			try {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			if (tempFile != null)
+				tempFile.delete();
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @param file
+	 * @return a matrix backed by a read-only memory mapping of the file 
+	 * (which was written by serialize), or null if the file couldn't be 
+	 * mapped
+	 */
+	public static FeatureMatrix map(File file) {
+		RandomAccessFile randomAccessFile = null;
+		try {
+			randomAccessFile = new RandomAccessFile(file, "r");
+			FileChannel channel = randomAccessFile.getChannel();
+			
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+			if (header.getInt() != MAGIC || header.getInt() != VERSION)
+				return null;
+			
+			int rowCount = header.getInt();
+			int columnCount = header.getInt();
+			int nonZeroCount = header.getInt();
+			int valueCount = header.getInt();
+			int featureCount = header.getInt();
+			int[] featureStartIndices = new int[featureCount];
+			int[] featureVocabularyHashes = new int[featureCount];
+			String[] featureNames = new String[featureCount];
+			for (int i = 0; i < featureCount; i++) {
+				featureStartIndices[i] = header.getInt();
+				featureVocabularyHashes[i] = header.getInt();
+				byte[] name = new byte[header.getInt()];
+				header.get(name);
+				featureNames[i] = new String(name, UTF8);
+			}
+			
+			long position = padPosition(header.position());
+			long end = padPosition(position + 8L*rowCount + 4L*(3*rowCount + 2) + 4L*nonZeroCount) + 8L*valueCount;
+			if (end > channel.size()) { // Truncated file
+				randomAccessFile.close();
+				return null;
+			}
+			
+			LongBuffer rowDatumFingerprints = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L*rowCount).asLongBuffer();
+			position += 8L*rowCount;
+			IntBuffer rowDatumIds = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L*rowCount).asIntBuffer();
+			position += 4L*rowCount;
+			IntBuffer rowOffsets = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L*(rowCount + 1)).asIntBuffer();
+			position += 4L*(rowCount + 1);
+			IntBuffer rowValueOffsets = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L*(rowCount + 1)).asIntBuffer();
+			position += 4L*(rowCount + 1);
+			IntBuffer columnIndices = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L*nonZeroCount).asIntBuffer();
+			position = padPosition(position + 4L*nonZeroCount);
+			DoubleBuffer values = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L*valueCount).asDoubleBuffer();
+			
+			// The mappings stay valid after the file is closed
+			randomAccessFile.close();
+			
+			return new FeatureMatrix(rowDatumIds, rowDatumFingerprints, rowOffsets, columnIndices, rowValueOffsets, values, columnCount, featureStartIndices, featureVocabularyHashes, featureNames);
+		} catch (Exception e) {
+			e.printStackTrace();
+			try {
+				if (randomAccessFile != null)
+					randomAccessFile.close();
+			} catch (IOException e1) { }
+			return null;
+		}
+	}
+	
+	public String toString() {
+		return "FeatureMatrix(rows=" + getRowCount() + ", columns=" + getColumnCount() + ", nonZeros=" + getNonZeroCount() + ", values=" + getValueCount() + ", bytes=" + getSizeInBytes() + ", rowReads=" + getRowReadCount() + ", rowMisses=" + getRowMissCount() + ")";
+	}
+	
+	private static int getVocabularyHash(Feature<?, ?> feature) {
+		String featureStr = feature.getIdentityString();
+		return (featureStr == null) ? 0 : featureStr.hashCode();
+	}
+	
+	private static long padPosition(long position) {
+		return (position + 7) & ~7L;
+	}
+	
+	private static long writePadding(DataOutputStream output, long position) throws IOException {
+		long paddedPosition = padPosition(position);
+		for (long i = position; i < paddedPosition; i++)
+			output.writeByte(0);
+		return paddedPosition;
+	}
+}
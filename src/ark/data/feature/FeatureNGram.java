@@ -19,15 +19,29 @@
 package ark.data.feature;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import ark.util.CounterTable;
 import ark.data.DataTools;
 import ark.data.annotation.Datum;
-import ark.util.BidirectionalLookupTable;
+import ark.data.annotation.Document;
+import ark.data.annotation.nlp.TokenSpan;
+import ark.util.LongIntHashMap;
+import ark.util.ObjectIntHashMap;
+import ark.util.SparseVectorBlock;
+import ark.util.SparseVectorBuilder;
+import ark.util.StringUtil;
+import ark.util.Vocabulary;
 import ark.wrapper.BrownClusterer;
 
 /**
@@ -54,12 +68,48 @@ import ark.wrapper.BrownClusterer;
  * as a component in the computed vectors.
  * 
  * The cleanFn parameter is a string cleaning function that is applied to
- * each gram in each n-gram before the vectors are computed.
+ * each gram in each n-gram before the vectors are computed.  For n of at 
+ * most 3, the cleaned grams are interned in a corpus-wide 
+ * ark.data.feature.TokenDictionary, so each distinct token is cleaned 
+ * once.  Features that support it (see packsNGrams) then represent the
+ * n-grams of each datum by the keys into which the dictionary packs them
+ * (see getPackedNGramsForDatum), so that the n-grams are counted, and 
+ * looked up in the vocabulary, by their keys.  Strings are only built 
+ * for the n-grams that are kept in the vocabulary (and for the rare 
+ * n-grams that can't be packed).
+ * 
+ * Features that compute n-grams over whole sentences (or windows within 
+ * them) get them through getSentenceNGrams, which shares the n-grams of 
+ * each sentence among all datums and features with the same n, clean 
+ * function, and clusterer (see ark.data.feature.SentenceNGramCache).
  * 
  * Optionally, if a clusterer (Brown) parameter is provided, then grams of
  * the n-grams are first mapped to their clusters or sets of 
  * prefixes of their clusters.
  * 
+ * If the hashBits parameter is greater than 0, then the feature uses the
+ * 'hashing trick' instead of building a vocabulary during 
+ * initialization.  Each n-gram is hashed (by MurmurHash3) into one of
+ * 2^hashBits components, so the size of the vectors and the memory used
+ * by the feature are fixed regardless of the size of the data set.  In 
+ * this mode, minFeatureOccurrence only applies to the counts of hashed
+ * components used to compute idfs for the NORMALIZED_TFIDF scale 
+ * (and initialization doesn't scan the data otherwise).  Since hashes 
+ * can't be reversed, the names of components are taken from a sample of
+ * up to maxHashNames n-grams taken from the training data during 
+ * initialization (the first n-gram hashed into each component, scanning 
+ * datums by id and their n-grams in sorted order), and other components
+ * have no names.  The sample only names components, so it isn't part of 
+ * the feature's identity (see getIdentityString).
+ * 
+ * If init value retention is enabled (see setInitValueRetention), then 
+ * the n-grams extracted from each datum during initialization are kept
+ * as arrays of keys and counts (see RetainedNGrams), and once the 
+ * vocabulary is fixed, they're encoded as arrays of (component index, 
+ * count) pairs.  The first vector computed for each 
+ * of these datums is built directly from its pairs instead of extracting
+ * the n-grams again.
+ * 
  * @author Bill McDowell
  * 
  * @param <D> datum type
@@ -85,16 +135,200 @@ public abstract class FeatureNGram<D extends Datum<L>, L> extends Feature<D, L>
 		NORMALIZED_TFIDF
 	}
 	
-	protected BidirectionalLookupTable<String, Integer> vocabulary;
+	protected Vocabulary vocabulary;
 	protected Map<Integer, Double> idfs; // maps vocabulary term indices to idf values to use in tfidf scale function
 	
 	protected int minFeatureOccurrence;
 	protected int n;
 	protected DataTools.StringTransform cleanFn;
 	protected BrownClusterer clusterer;
+	private volatile TokenDictionary tokenDictionary; // Interned grams for the clean function and clusterer (null until needed)
+	private volatile SentenceNGramCache<String[][]> sentenceNGramCache; // Sentence n-grams for n, the clean function, and the clusterer (null until needed)
+	private volatile SentenceNGramCache<SentenceNGramKeys> sentenceNGramKeyCache; // Packed sentence n-grams (null until needed)
+	private volatile LongIntHashMap keyVocabulary; // Keys of packed vocabulary n-grams to their indices (null until needed)
 	protected Datum.Tools.TokenSpanExtractor<D, L> tokenExtractor;
 	protected Scale scale;
-	protected String[] parameterNames = {"minFeatureOccurrence", "n", "cleanFn", "clusterer", "tokenExtractor", "scale"};
+	protected int hashBits; // 0 if n-grams shouldn't be hashed
+	protected int maxHashNames;
+	protected String[] parameterNames = {"minFeatureOccurrence", "n", "cleanFn", "clusterer", "tokenExtractor", "scale", "hashBits", "maxHashNames"};
+	
+	private ConcurrentHashMap<Integer, String> hashNames; // Sample of names for hashed components
+	// Maps datum ids to n-grams extracted during initialization (null unless
+	// init values are retained).  Values are RetainedNGrams while the 
+	// vocabulary is counted, and (component index, count) pair arrays after
+	private volatile ConcurrentHashMap<Integer, Object> retainedNGrams;
+	
+	// Most recent (datum, token extractor, token spans) for each thread (see extractTokenSpans)
+	private static ThreadLocal<Object[]> lastTokenSpans = new ThreadLocal<Object[]>() {
+		@Override
+		protected Object[] initialValue() {
+			return new Object[3];
+		}
+	};
+	
+	/**
+	 * SentenceNGramKeys holds the n-grams of a sentence packed into keys 
+	 * (see getSentenceNGramKeys), indexed by the sentence token at which 
+	 * they start.  The few n-grams that can't be packed are kept as 
+	 * strings.
+	 *
+	 */
+	protected static class SentenceNGramKeys {
+		private long[][] keys;
+		private String[][] unpackedNGrams; // null if all n-grams are packed
+		
+		public SentenceNGramKeys(int size) {
+			this.keys = new long[size][];
+		}
+		
+		public int size() {
+			return this.keys.length;
+		}
+		
+		/**
+		 * @param startIndex
+		 * @return keys of the n-grams starting at token startIndex, or null
+		 * if there are none
+		 */
+		public long[] getKeys(int startIndex) {
+			return this.keys[startIndex];
+		}
+		
+		/**
+		 * @param startIndex
+		 * @return n-grams starting at token startIndex that can't be packed,
+		 * or null if there are none
+		 */
+		public String[] getUnpackedNGrams(int startIndex) {
+			return (this.unpackedNGrams == null) ? null : this.unpackedNGrams[startIndex];
+		}
+	}
+	
+	/**
+	 * NGramCounts holds the counts of the n-grams of a datum for features 
+	 * that pack their n-grams into keys (see getPackedNGramsForDatum).  
+	 * The few n-grams that can't be packed are counted as strings.
+	 *
+	 */
+	protected static class NGramCounts {
+		private LongIntHashMap keyCounts;
+		private Map<String, Integer> unpackedCounts;
+		
+		public NGramCounts() {
+			this.keyCounts = new LongIntHashMap();
+			this.unpackedCounts = Collections.emptyMap();
+		}
+		
+		public void add(long key) {
+			this.keyCounts.increment(key, 1);
+		}
+		
+		public void add(String unpackedNGram) {
+			if (this.unpackedCounts.isEmpty())
+				this.unpackedCounts = new HashMap<String, Integer>();
+			Integer count = this.unpackedCounts.get(unpackedNGram);
+			this.unpackedCounts.put(unpackedNGram, (count == null) ? 1 : count + 1);
+		}
+		
+		public LongIntHashMap getKeyCounts() {
+			return this.keyCounts;
+		}
+		
+		public Map<String, Integer> getUnpackedCounts() {
+			return this.unpackedCounts;
+		}
+	}
+	
+	/**
+	 * RetainedNGrams holds the n-grams extracted from a datum during 
+	 * initialization until the vocabulary is fixed (see 
+	 * setInitValueRetention).  N-grams are packed into keys where possible
+	 * (see TokenDictionary.getKey), and stored with their counts in flat
+	 * arrays, so that they take a few bytes each instead of a map entry, a
+	 * boxed count, and a string.  Only the n-grams that can't be packed 
+	 * are kept as strings.
+	 *
+	 */
+	private static class RetainedNGrams {
+		private long[] keys;
+		private int[] keyCounts;
+		private String[] unpackedNGrams;
+		private int[] unpackedCounts;
+		
+		public RetainedNGrams(NGramCounts ngramsForDatum) {
+			LongIntHashMap keyCounts = ngramsForDatum.getKeyCounts();
+			this.keys = new long[keyCounts.size()];
+			this.keyCounts = new int[keyCounts.size()];
+			for (int i = 0, j = 0; i < keyCounts.getSlotCount(); i++) {
+				if (!keyCounts.isSlotUsed(i))
+					continue;
+				this.keys[j] = keyCounts.getSlotKey(i);
+				this.keyCounts[j] = keyCounts.getSlotValue(i);
+				j++;
+			}
+			
+			setUnpackedNGrams(ngramsForDatum.getUnpackedCounts().entrySet());
+		}
+		
+		public RetainedNGrams(Map<String, Integer> ngramsForDatum, TokenDictionary tokenDictionary) {
+			this.keys = new long[ngramsForDatum.size()];
+			this.keyCounts = new int[ngramsForDatum.size()];
+			List<Entry<String, Integer>> unpackedEntries = new ArrayList<Entry<String, Integer>>();
+			int size = 0;
+			for (Entry<String, Integer> entry : ngramsForDatum.entrySet()) {
+				long key = tokenDictionary.getKey(entry.getKey());
+				if (key > 0) {
+					this.keys[size] = key;
+					this.keyCounts[size] = entry.getValue();
+					size++;
+				} else {
+					unpackedEntries.add(entry);
+				}
+			}
+			
+			if (size < this.keys.length) {
+				this.keys = Arrays.copyOf(this.keys, size);
+				this.keyCounts = Arrays.copyOf(this.keyCounts, size);
+			}
+			
+			setUnpackedNGrams(unpackedEntries);
+		}
+		
+		private void setUnpackedNGrams(Collection<Entry<String, Integer>> unpackedEntries) {
+			this.unpackedNGrams = new String[unpackedEntries.size()];
+			this.unpackedCounts = new int[unpackedEntries.size()];
+			int i = 0;
+			for (Entry<String, Integer> entry : unpackedEntries) {
+				this.unpackedNGrams[i] = entry.getKey();
+				this.unpackedCounts[i] = entry.getValue();
+				i++;
+			}
+		}
+		
+		/**
+		 * @return (component index, count) pairs for the n-grams that are
+		 * in the vocabulary
+		 */
+		public int[] toPairs(LongIntHashMap keyVocabulary, Vocabulary vocabulary) {
+			int[] pairs = new int[(this.keys.length + this.unpackedNGrams.length)*2];
+			int size = 0;
+			for (int i = 0; i < this.keys.length; i++) {
+				int index = keyVocabulary.get(this.keys[i], -1);
+				if (index < 0)
+					continue;
+				pairs[size++] = index;
+				pairs[size++] = this.keyCounts[i];
+			}
+			for (int i = 0; i < this.unpackedNGrams.length; i++) {
+				int index = vocabulary.get(this.unpackedNGrams[i]);
+				if (index < 0)
+					continue;
+				pairs[size++] = index;
+				pairs[size++] = this.unpackedCounts[i];
+			}
+			return (size == pairs.length) ? pairs : Arrays.copyOf(pairs, size);
+		}
+	}
 	
 	/**
 	 * @param datum
@@ -104,97 +338,675 @@ public abstract class FeatureNGram<D extends Datum<L>, L> extends Feature<D, L>
 	 */
 	protected abstract Map<String, Integer> getNGramsForDatum(D datum);
 	
+	/**
+	 * @return true if the feature can give the n-grams of datums packed 
+	 * into keys (see getPackedNGramsForDatum).  Packed n-grams are used
+	 * when this is true, n is at most TokenDictionary.MAX_PACKED_N, and 
+	 * the n-grams aren't hashed.
+	 */
+	protected boolean packsNGrams() {
+		return false;
+	}
+	
+	/**
+	 * @param datum
+	 * @return the same n-grams as getNGramsForDatum, but packed into keys
+	 * where possible (see addNGram and getSentenceNGramKeys), or null if 
+	 * the feature doesn't pack n-grams
+	 */
+	protected NGramCounts getPackedNGramsForDatum(D datum) {
+		return null;
+	}
+	
 	public FeatureNGram() {
-		this.vocabulary = new BidirectionalLookupTable<String, Integer>();
+		this.vocabulary = new Vocabulary();
 		this.idfs = new HashMap<Integer, Double>();
 		this.scale = Scale.INDICATOR;
+		this.hashBits = 0;
+		this.maxHashNames = 0;
+		this.hashNames = new ConcurrentHashMap<Integer, String>();
 	}
 	
 	@Override
 	public boolean init(FeaturizedDataSet<D, L> dataSet) {
-		CounterTable<String> counter = new CounterTable<String>();
-		for (D datum : dataSet) {
-			Map<String, Integer> ngramsForDatum = getNGramsForDatum(datum);
-			for (String ngram : ngramsForDatum.keySet()) {
-				counter.incrementCount(ngram);
+		if (this.hashBits > 0)
+			return initHashed(dataSet);
+		return initVocabulary(dataSet, dataSet.countDatumKeys(getVocabularyKeyExtractor(), this.minFeatureOccurrence));
+	}
+	
+	private boolean initHashed(FeaturizedDataSet<D, L> dataSet) {
+		this.idfs = new HashMap<Integer, Double>();
+		sampleHashNames(dataSet);
+		if (this.retainedNGrams != null)
+			this.retainedNGrams = new ConcurrentHashMap<Integer, Object>();
+		if (this.scale != Scale.NORMALIZED_TFIDF)
+			return true;
+		
+		CounterTable<Integer> counter = dataSet.countDatumKeys(new FeaturizedDataSet.DatumKeyExtractor<D, Integer>() {
+			public Iterable<Integer> extractKeys(D datum) {
+				Map<String, Integer> ngramsForDatum = getRawNGramsForDatum(datum);
+				ConcurrentHashMap<Integer, Object> retainedNGrams = FeatureNGram.this.retainedNGrams;
+				if (retainedNGrams == null) {
+					Set<Integer> hashIndices = new HashSet<Integer>();
+					for (String ngram : ngramsForDatum.keySet())
+						hashIndices.add(getHashIndex(ngram));
+					return hashIndices;
+				}
+				
+				// Hash indices are known already, so the pairs are retained right away
+				int[] pairs = getHashedPairs(ngramsForDatum);
+				retainedNGrams.put(datum.getId(), pairs);
+				
+				List<Integer> hashIndices = new ArrayList<Integer>(pairs.length / 2);
+				for (int i = 0; i < pairs.length; i += 2)
+					hashIndices.add(pairs[i]);
+				return hashIndices;
 			}
+		});
+		if (counter == null)
+			return false;
+		
+		counter.removeCountsLessThan(this.minFeatureOccurrence);
+		
+		double N = dataSet.size();
+		for (Entry<Integer, Integer> entry : counter.getCounts().entrySet()) {
+			this.idfs.put(entry.getKey(), Math.log(N/(1.0 + entry.getValue())));
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Keeps the first n-gram hashed into each component as its name, for up
+	 * to maxHashNames components.  The datums are scanned in order of their
+	 * ids, and the n-grams for each datum in sorted order, so the sample 
+	 * only depends on the training data.
+	 */
+	private void sampleHashNames(FeaturizedDataSet<D, L> dataSet) {
+		ConcurrentHashMap<Integer, String> hashNames = new ConcurrentHashMap<Integer, String>();
+		if (this.maxHashNames > 0) {
+			for (D datum : dataSet) {
+				List<String> ngrams = new ArrayList<String>(getRawNGramsForDatum(datum).keySet());
+				Collections.sort(ngrams);
+				for (String ngram : ngrams) {
+					int index = getHashIndex(ngram);
+					if (!hashNames.containsKey(index))
+						hashNames.put(index, ngram);
+					if (hashNames.size() >= this.maxHashNames)
+						break;
+				}
+				if (hashNames.size() >= this.maxHashNames)
+					break;
+			}
+		}
+		this.hashNames = hashNames;
+	}
+	
+	@Override
+	protected FeaturizedDataSet.DatumKeyExtractor<D, String> getVocabularyKeyExtractor() {
+		if (this.hashBits > 0)
+			return null;
+		
+		if (isPacked()) {
+			return new FeaturizedDataSet.DatumPackedKeyExtractor<D, String>() {
+				// N-grams of the datum given to extractPackedKeys on each thread
+				private ThreadLocal<NGramCounts> lastNGrams = new ThreadLocal<NGramCounts>();
+				
+				public LongIntHashMap extractPackedKeys(D datum) {
+					NGramCounts ngramsForDatum = getRawPackedNGramsForDatum(datum);
+					
+					// Datums can be scanned more than once while counting (see 
+					// FeaturizedDataSet.countDatumKeys), and n-grams left from an
+					// earlier scan or initialization are replaced
+					ConcurrentHashMap<Integer, Object> retainedNGrams = FeatureNGram.this.retainedNGrams;
+					if (retainedNGrams != null)
+						retainedNGrams.put(datum.getId(), new RetainedNGrams(ngramsForDatum));
+					
+					this.lastNGrams.set(ngramsForDatum);
+					return ngramsForDatum.getKeyCounts();
+				}
+				
+				public Iterable<String> extractKeys(D datum) {
+					NGramCounts ngramsForDatum = this.lastNGrams.get();
+					this.lastNGrams.remove();
+					return ngramsForDatum.getUnpackedCounts().keySet();
+				}
+			};
 		}
 		
+		return new FeaturizedDataSet.DatumKeyExtractor<D, String>() {
+			public Iterable<String> extractKeys(D datum) {
+				Map<String, Integer> ngramsForDatum = getRawNGramsForDatum(datum);
+				
+				// Datums can be scanned more than once while counting (see 
+				// FeaturizedDataSet.countDatumKeys), and n-grams left from an
+				// earlier scan or initialization are replaced
+				ConcurrentHashMap<Integer, Object> retainedNGrams = FeatureNGram.this.retainedNGrams;
+				if (retainedNGrams != null)
+					retainedNGrams.put(datum.getId(), new RetainedNGrams(ngramsForDatum, getTokenDictionary()));
+				
+				return ngramsForDatum.keySet();
+			}
+		};
+	}
+	
+	@Override
+	protected int getVocabularyMinCount() {
+		return this.minFeatureOccurrence;
+	}
+	
+	@Override
+	protected String getVocabularyKeyGroup() {
+		return (this.tokenExtractor == null) ? null : this.tokenExtractor.toString();
+	}
+	
+	@Override
+	protected boolean initVocabulary(FeaturizedDataSet<D, L> dataSet, CounterTable<String> counter) {
+		if (counter == null)
+			return false;
+		
 		counter.removeCountsLessThan(this.minFeatureOccurrence);
 		
-		this.vocabulary = new BidirectionalLookupTable<String, Integer>(counter.buildIndex());
+		// Strings are only built for the packed n-grams that are kept
+		LongIntHashMap packedCounts = counter.getPackedCountTable();
+		TokenDictionary tokenDictionary = (packedCounts.size() > 0) ? getTokenDictionary() : null;
+		long[] keys = new long[packedCounts.size()];
+		String[] packedNGrams = new String[keys.length];
+		List<String> terms = counter.getItems();
+		for (int i = 0, j = 0; i < packedCounts.getSlotCount(); i++) {
+			if (!packedCounts.isSlotUsed(i))
+				continue;
+			keys[j] = packedCounts.getSlotKey(i);
+			packedNGrams[j] = tokenDictionary.getNGram(keys[j]);
+			terms.add(packedNGrams[j]);
+			j++;
+		}
+		Collections.sort(terms);
+		
+		this.vocabulary = new Vocabulary(terms);
+		LongIntHashMap keyVocabulary = new LongIntHashMap(keys.length);
+		for (int i = 0; i < keys.length; i++)
+			keyVocabulary.put(keys[i], this.vocabulary.get(packedNGrams[i]));
 		
-		Map<String, Integer> counts = counter.getCounts();
+		// Without packed counts, the keys of the vocabulary are built from 
+		// its strings if they're needed (see getKeyVocabulary)
+		this.keyVocabulary = (isPacked()) ? keyVocabulary : null;
+		
+		ObjectIntHashMap<String> counts = counter.getCountTable();
 		double N = dataSet.size();
-		for (Entry<String, Integer> entry : counts.entrySet()) {
-			this.idfs.put(this.vocabulary.get(entry.getKey()), Math.log(N/(1.0 + entry.getValue())));
+		for (int i = 0; i < counts.getSlotCount(); i++) {
+			if (counts.isSlotUsed(i))
+				this.idfs.put(this.vocabulary.get(counts.getSlotKey(i)), Math.log(N/(1.0 + counts.getSlotValue(i))));
+		}
+		for (int i = 0; i < packedCounts.getSlotCount(); i++) {
+			if (packedCounts.isSlotUsed(i))
+				this.idfs.put(keyVocabulary.get(packedCounts.getSlotKey(i), -1), Math.log(N/(1.0 + packedCounts.getSlotValue(i))));
+		}
+		
+		ConcurrentHashMap<Integer, Object> retainedNGrams = this.retainedNGrams;
+		if (retainedNGrams != null) {
+			LongIntHashMap retainedKeyVocabulary = getKeyVocabulary();
+			Iterator<Entry<Integer, Object>> entries = retainedNGrams.entrySet().iterator();
+			while (entries.hasNext()) {
+				Entry<Integer, Object> entry = entries.next();
+				if (entry.getValue() instanceof RetainedNGrams)
+					entry.setValue(((RetainedNGrams)entry.getValue()).toPairs(retainedKeyVocabulary, this.vocabulary));
+				else // Left from an earlier initialization
+					entries.remove();
+			}
 		}
 		
 		return true;
 	}
+	
+	@Override
+	public boolean setInitValueRetention(boolean retainInitValues) {
+		if (!retainInitValues)
+			this.retainedNGrams = null;
+		else if (this.retainedNGrams == null)
+			this.retainedNGrams = new ConcurrentHashMap<Integer, Object>();
+		return true;
+	}
 
 	@Override
 	public Map<Integer, Double> computeVector(D datum) {
-		Map<String, Integer> ngramsForDatum = getNGramsForDatum(datum);
-		Map<Integer, Double> vector = new HashMap<Integer, Double>();
-		
-		if (this.scale == Scale.INDICATOR) {
-			for (String ngram : ngramsForDatum.keySet()) {
-				if (this.vocabulary.containsKey(ngram))
-					vector.put(this.vocabulary.get(ngram), 1.0);		
+		return computeVectorAsMap(datum);
+	}
+	
+	@Override
+	public boolean computeVector(D datum, int offset, SparseVectorBuilder vector) {
+		ConcurrentHashMap<Integer, Object> retainedNGrams = this.retainedNGrams;
+		if (retainedNGrams != null) {
+			Object retained = retainedNGrams.get(datum.getId());
+			if (retained instanceof int[]) {
+				retainedNGrams.remove(datum.getId());
+				return computeVector((int[])retained, offset, vector);
 			}
-		} else if (this.scale == Scale.NORMALIZED_LOG) {
-			double norm = 0.0;
-			for (Entry<String, Integer> entry : ngramsForDatum.entrySet()) {
-				if (!this.vocabulary.containsKey(entry.getKey()))
+		}
+		
+		if (isPacked())
+			return computePackedVector(getRawPackedNGramsForDatum(datum), offset, vector);
+		
+		Map<String, Integer> ngramsForDatum = getRawNGramsForDatum(datum);
+		if (this.hashBits > 0)
+			return computeHashedVector(ngramsForDatum, offset, vector);
+		
+		int[] pairs = new int[ngramsForDatum.size()*2];
+		int size = 0;
+		for (Entry<String, Integer> entry : ngramsForDatum.entrySet()) {
+			int index = this.vocabulary.get(entry.getKey());
+			if (index < 0)
+				continue;
+			pairs[size++] = index;
+			pairs[size++] = entry.getValue();
+		}
+
+		return addScaledCounts(pairs, size, offset, vector);
+	}
+
+	/**
+	 * Computes the vectors for a block of datums in the order of their 
+	 * sentences (see Feature.getSentenceOrder), so that datums in the same
+	 * sentence are visited together while the sentence's tokens and n-grams 
+	 * are recent.  The token spans extracted to order the datums are handed
+	 * to extractTokenSpans, so they're still only extracted once per datum.
+	 */
+	@Override
+	public boolean computeVectors(List<D> data, int offset, SparseVectorBlock block) {
+		if (this.tokenExtractor == null)
+			return super.computeVectors(data, offset, block);
+		
+		TokenSpan[][] tokenSpans = new TokenSpan[data.size()][];
+		for (int i = 0; i < tokenSpans.length; i++)
+			tokenSpans[i] = this.tokenExtractor.extract(data.get(i));
+		Integer[] order = getSentenceOrder(tokenSpans);
+		
+		Object[] lastTokenSpans = FeatureNGram.lastTokenSpans.get();
+		SparseVectorBuilder entries = block.getEntries();
+		for (int i = 0; i < order.length; i++) {
+			int row = order[i];
+			D datum = data.get(row);
+			lastTokenSpans[0] = datum;
+			lastTokenSpans[1] = this.tokenExtractor;
+			lastTokenSpans[2] = tokenSpans[row];
+			
+			int start = entries.size();
+			if (!computeVector(datum, offset, entries))
+				return false;
+			block.setRow(row, start, entries.size());
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @param pairs - (component index, count) pairs retained from 
+	 * initialization
+	 * @param offset
+	 * @param vector
+	 * @return true if the scaled counts have been added to the vector
+	 */
+	private boolean computeVector(int[] pairs, int offset, SparseVectorBuilder vector) {
+		return addScaledCounts(pairs, pairs.length, offset, vector);
+	}
+	
+	/**
+	 * Adds the counts of components of a datum's vector to the vector, 
+	 * scaled by the scale function.  This is shared by all of the ways 
+	 * that the counts are found (from strings, packed keys, hashes, or 
+	 * pairs retained from initialization).  For NORMALIZED_TFIDF, 
+	 * components without idfs (e.g. in a deserialized feature, or hashed
+	 * components that didn't occur often enough in the training data) are
+	 * left out.
+	 * 
+	 * @param pairs - (component index, count) pairs, with indices 
+	 * relative to the feature
+	 * @param size - number of ints of pairs that are used
+	 * @param offset
+	 * @param vector
+	 * @return true if the scaled counts have been added to the vector
+	 */
+	private boolean addScaledCounts(int[] pairs, int size, int offset, SparseVectorBuilder vector) {
+		int start = vector.size();
+		double norm = 0.0;
+		for (int i = 0; i < size; i += 2) {
+			double value = 1.0;
+			if (this.scale == Scale.NORMALIZED_LOG) {
+				value = Math.log(pairs[i + 1] + 1.0);
+			} else if (this.scale == Scale.NORMALIZED_TFIDF) {
+				Double idf = this.idfs.get(pairs[i]);
+				if (idf == null)
 					continue;
-				int index = this.vocabulary.get(entry.getKey());
-				double value = Math.log(entry.getValue() + 1.0);
-				norm += value*value;
-				vector.put(index, value);
+				value = pairs[i + 1]*idf;
 			}
 			
+			norm += value*value;
+			vector.add(pairs[i] + offset, value);
+		}
+		
+		if (this.scale != Scale.INDICATOR) {
 			norm = Math.sqrt(norm);
+			for (int i = start; i < vector.size(); i++) {
+				vector.setValue(i, vector.getValue(i)/norm);
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @param ngramsForDatum - packed n-grams of a datum
+	 * @param offset
+	 * @param vector
+	 * @return true if the scaled counts of the n-grams in the vocabulary 
+	 * have been added to the vector.  Packed n-grams are looked up by their
+	 * keys, and only the n-grams that couldn't be packed are looked up by 
+	 * their strings.
+	 */
+	private boolean computePackedVector(NGramCounts ngramsForDatum, int offset, SparseVectorBuilder vector) {
+		LongIntHashMap keyVocabulary = getKeyVocabulary();
+		LongIntHashMap keyCounts = ngramsForDatum.getKeyCounts();
+		Map<String, Integer> unpackedCounts = ngramsForDatum.getUnpackedCounts();
+		int[] pairs = new int[(keyCounts.size() + unpackedCounts.size())*2];
+		int size = 0;
+		for (int i = 0; i < keyCounts.getSlotCount(); i++) {
+			if (!keyCounts.isSlotUsed(i))
+				continue;
+			int index = keyVocabulary.get(keyCounts.getSlotKey(i), -1);
+			if (index < 0)
+				continue;
+			pairs[size++] = index;
+			pairs[size++] = keyCounts.getSlotValue(i);
+		}
+		
+		for (Entry<String, Integer> entry : unpackedCounts.entrySet()) {
+			int index = this.vocabulary.get(entry.getKey());
+			if (index < 0)
+				continue;
+			pairs[size++] = index;
+			pairs[size++] = entry.getValue();
+		}
+		
+		return addScaledCounts(pairs, size, offset, vector);
+	}
+	
+	/**
+	 * @return a map from the keys of the packed n-grams in the vocabulary 
+	 * to their indices.  It's built when the vocabulary is counted, or 
+	 * from the vocabulary's strings (e.g. for a deserialized feature) on 
+	 * the first request.  Since the key of an n-gram is a function of its
+	 * string (see TokenDictionary.getKey), vocabulary n-grams that don't
+	 * have keys here are never packed in datums either.
+	 */
+	private LongIntHashMap getKeyVocabulary() {
+		LongIntHashMap keyVocabulary = this.keyVocabulary;
+		if (keyVocabulary != null)
+			return keyVocabulary;
+		
+		synchronized (this) {
+			if (this.keyVocabulary != null)
+				return this.keyVocabulary;
 			
-			for (Entry<Integer, Double> entry : vector.entrySet()) {
-				entry.setValue(entry.getValue()/norm);
+			TokenDictionary tokenDictionary = getTokenDictionary();
+			keyVocabulary = new LongIntHashMap(this.vocabulary.size());
+			for (int i = 0; i < this.vocabulary.size(); i++) {
+				String term = this.vocabulary.reverseGet(i);
+				long key = (term == null) ? -1 : tokenDictionary.getKey(term);
+				if (key > 0)
+					keyVocabulary.put(key, i);
 			}
-		} else if (this.scale == Scale.NORMALIZED_TFIDF) {
-			double norm = 0.0;
-			for (Entry<String, Integer> entry : ngramsForDatum.entrySet()) {
-				if (!this.vocabulary.containsKey(entry.getKey()))
-					continue;
-				int index = this.vocabulary.get(entry.getKey());
-				double value = entry.getValue()*this.idfs.get(index);//Math.log(entry.getValue() + 1.0);
-				norm += value*value;
-				vector.put(index, value);
+			this.keyVocabulary = keyVocabulary;
+		}
+		
+		return keyVocabulary;
+	}
+	
+	/**
+	 * @param ngramsForDatum
+	 * @return (component index, count) pairs for the components into
+	 * which the n-grams are hashed
+	 */
+	private int[] getHashedPairs(Map<String, Integer> ngramsForDatum) {
+		// Several n-grams can be hashed into the same component
+		Map<Integer, Integer> hashedNGramsForDatum = new HashMap<Integer, Integer>();
+		for (Entry<String, Integer> entry : ngramsForDatum.entrySet()) {
+			int index = getHashIndex(entry.getKey());
+			Integer count = hashedNGramsForDatum.get(index);
+			hashedNGramsForDatum.put(index, (count == null) ? entry.getValue() : count + entry.getValue());
+		}
+		
+		int[] pairs = new int[hashedNGramsForDatum.size()*2];
+		int i = 0;
+		for (Entry<Integer, Integer> entry : hashedNGramsForDatum.entrySet()) {
+			pairs[i++] = entry.getKey();
+			pairs[i++] = entry.getValue();
+		}
+		return pairs;
+	}
+	
+	private boolean computeHashedVector(Map<String, Integer> ngramsForDatum, int offset, SparseVectorBuilder vector) {
+		return computeVector(getHashedPairs(ngramsForDatum), offset, vector);
+	}
+	
+	/**
+	 * @param ngram
+	 * @return the component into which the n-gram is hashed
+	 */
+	private int getHashIndex(String ngram) {
+		return StringUtil.murmurHash3(ngram, 0) & ((1 << this.hashBits) - 1);
+	}
+	
+	/**
+	 * @param datum
+	 * @return the token spans given by the token extractor for the datum.
+	 * The spans for the most recent datum are remembered by each thread, so 
+	 * that n-gram features that share a token extractor only run it once 
+	 * per datum when they're computed one after the other (e.g. by 
+	 * FeaturizedDataSet).
+	 */
+	protected TokenSpan[] extractTokenSpans(D datum) {
+		Object[] lastTokenSpans = FeatureNGram.lastTokenSpans.get();
+		if (lastTokenSpans[0] == datum && lastTokenSpans[1] == this.tokenExtractor)
+			return (TokenSpan[])lastTokenSpans[2];
+		
+		TokenSpan[] tokenSpans = this.tokenExtractor.extract(datum);
+		lastTokenSpans[0] = datum;
+		lastTokenSpans[1] = this.tokenExtractor;
+		lastTokenSpans[2] = tokenSpans;
+		
+		return tokenSpans;
+	}
+	
+	/**
+	 * @param datum
+	 * @return n-grams for the datum from the raw value cache (see 
+	 * Feature.setRawValueCaching), or from getNGramsForDatum if they
+	 * haven't been cached
+	 */
+	private Map<String, Integer> getRawNGramsForDatum(D datum) {
+		Map<String, Integer> ngramsForDatum = getCachedRawValue(datum);
+		if (ngramsForDatum != null)
+			return ngramsForDatum;
+		
+		ngramsForDatum = getNGramsForDatum(datum);
+		setCachedRawValue(datum, ngramsForDatum);
+		
+		return ngramsForDatum;
+	}
+	
+	/**
+	 * @param datum
+	 * @return packed n-grams for the datum from the raw value cache (see 
+	 * Feature.setRawValueCaching), or from getPackedNGramsForDatum if 
+	 * they haven't been cached
+	 */
+	private NGramCounts getRawPackedNGramsForDatum(D datum) {
+		NGramCounts ngramsForDatum = getCachedRawValue(datum);
+		if (ngramsForDatum != null)
+			return ngramsForDatum;
+		
+		ngramsForDatum = getPackedNGramsForDatum(datum);
+		setCachedRawValue(datum, ngramsForDatum);
+		
+		return ngramsForDatum;
+	}
+	
+	/**
+	 * @return true if the n-grams of datums are packed into keys (see
+	 * packsNGrams)
+	 */
+	private boolean isPacked() {
+		return this.hashBits <= 0 && this.n <= TokenDictionary.MAX_PACKED_N && packsNGrams();
+	}
+	
+	private TokenDictionary getTokenDictionary() {
+		TokenDictionary tokenDictionary = this.tokenDictionary;
+		if (tokenDictionary == null) {
+			tokenDictionary = TokenDictionary.getInstance(this.cleanFn, this.clusterer);
+			this.tokenDictionary = tokenDictionary;
+		}
+		return tokenDictionary;
+	}
+	
+	/**
+	 * Adds an n-gram to the counts of a datum's packed n-grams, by its key
+	 * if it has one (see TokenDictionary.getKey), and otherwise by its 
+	 * string
+	 * 
+	 * @param ngramsForDatum
+	 * @param ngram
+	 */
+	protected void addNGram(NGramCounts ngramsForDatum, String ngram) {
+		long key = getTokenDictionary().getKey(ngram);
+		if (key > 0)
+			ngramsForDatum.add(key);
+		else
+			ngramsForDatum.add(ngram);
+	}
+	
+	/**
+	 * @param key
+	 * @return the n-gram string for a packed key
+	 */
+	protected String getNGram(long key) {
+		return getTokenDictionary().getNGram(key);
+	}
+	
+	/**
+	 * @param document
+	 * @param sentenceIndex
+	 * @return the clean n-grams of the sentence packed into keys (like 
+	 * getSentenceNGrams), or null if the sentence has no tokens.  The 
+	 * keys are shared through a SentenceNGramCache, so they shouldn't be
+	 * modified.
+	 */
+	protected SentenceNGramKeys getSentenceNGramKeys(Document document, int sentenceIndex) {
+		SentenceNGramCache<SentenceNGramKeys> sentenceNGramKeyCache = this.sentenceNGramKeyCache;
+		if (sentenceNGramKeyCache == null) {
+			sentenceNGramKeyCache = SentenceNGramCache.getPackedInstance(this.n, getTokenDictionary());
+			this.sentenceNGramKeyCache = sentenceNGramKeyCache;
+		}
+		
+		SentenceNGramKeys sentenceNGramKeys = sentenceNGramKeyCache.get(document, sentenceIndex);
+		if (sentenceNGramKeys != null)
+			return sentenceNGramKeys;
+		
+		List<String> tokens = document.getSentenceTokens(sentenceIndex);
+		if (tokens == null)
+			return null;
+		
+		TokenDictionary tokenDictionary = getTokenDictionary();
+		sentenceNGramKeys = new SentenceNGramKeys(Math.max(0, tokens.size() - this.n + 1));
+		for (int i = 0; i < sentenceNGramKeys.keys.length; i++) {
+			long key = (this.n == 1 && this.clusterer != null) ? -1 : tokenDictionary.getNGramKey(tokens, i, this.n);
+			if (key == 0)
+				continue;
+			if (key > 0) {
+				sentenceNGramKeys.keys[i] = new long[] { key };
+				continue;
 			}
 			
-			norm = Math.sqrt(norm);
+			// Cluster prefixes, or n-grams with grams that can't be packed on their own
+			List<String> ngrams = getCleanNGrams(tokens, i);
+			if (ngrams == null)
+				continue;
+			long[] keys = new long[ngrams.size()];
+			int keyCount = 0;
+			List<String> unpackedNGrams = new ArrayList<String>();
+			for (String ngram : ngrams) {
+				key = tokenDictionary.getKey(ngram);
+				if (key > 0)
+					keys[keyCount++] = key;
+				else
+					unpackedNGrams.add(ngram);
+			}
 			
-			for (Entry<Integer, Double> entry : vector.entrySet()) {
-				entry.setValue(entry.getValue()/norm);
+			sentenceNGramKeys.keys[i] = (keyCount == keys.length) ? keys : Arrays.copyOf(keys, keyCount);
+			if (unpackedNGrams.size() > 0) {
+				if (sentenceNGramKeys.unpackedNGrams == null)
+					sentenceNGramKeys.unpackedNGrams = new String[sentenceNGramKeys.keys.length][];
+				sentenceNGramKeys.unpackedNGrams[i] = unpackedNGrams.toArray(new String[unpackedNGrams.size()]);
 			}
 		}
-
-		return vector;
+		
+		sentenceNGramKeyCache.put(document, sentenceIndex, sentenceNGramKeys);
+		
+		return sentenceNGramKeys;
 	}
-
+	
+	/**
+	 * @param document
+	 * @param sentenceIndex
+	 * @return an array whose i-th element contains the clean n-grams 
+	 * starting at the i-th token of the sentence (see getCleanNGrams), or 
+	 * null if the sentence has no tokens.  The array is shared through a 
+	 * SentenceNGramCache, so it shouldn't be modified.
+	 */
+	protected String[][] getSentenceNGrams(Document document, int sentenceIndex) {
+		SentenceNGramCache<String[][]> sentenceNGramCache = this.sentenceNGramCache;
+		if (sentenceNGramCache == null) {
+			sentenceNGramCache = SentenceNGramCache.getInstance(this.n, this.cleanFn, this.clusterer);
+			this.sentenceNGramCache = sentenceNGramCache;
+		}
+		
+		String[][] sentenceNGrams = sentenceNGramCache.get(document, sentenceIndex);
+		if (sentenceNGrams != null)
+			return sentenceNGrams;
+		
+		List<String> tokens = document.getSentenceTokens(sentenceIndex);
+		if (tokens == null)
+			return null;
+		
+		sentenceNGrams = new String[Math.max(0, tokens.size() - this.n + 1)][];
+		for (int i = 0; i < sentenceNGrams.length; i++) {
+			List<String> ngrams = getCleanNGrams(tokens, i);
+			if (ngrams != null)
+				sentenceNGrams[i] = ngrams.toArray(new String[ngrams.size()]);
+		}
+		
+		sentenceNGramCache.put(document, sentenceIndex, sentenceNGrams);
+		
+		return sentenceNGrams;
+	}
+	
 	protected List<String> getCleanNGrams(List<String> tokens, int startIndex) {
+		if (this.n <= TokenDictionary.MAX_PACKED_N && !(this.n == 1 && this.clusterer != null)) {
+			TokenDictionary tokenDictionary = getTokenDictionary();
+			long key = tokenDictionary.getNGramKey(tokens, startIndex, this.n);
+			if (key == 0)
+				return null;
+			else if (key > 0)
+				return Collections.singletonList(tokenDictionary.getNGram(key));
+		}
+		
+		if (this.n == 1 && this.clusterer != null)
+			return this.clusterer.getClusterPrefixes(this.cleanFn.transform(tokens.get(startIndex)));
+		
 		List<String> ngram = new ArrayList<String>(this.n);
 		for (int i = startIndex; i < startIndex + this.n; i++)
 			ngram.add(tokens.get(i));
 		
 		List<String> retNgrams = new ArrayList<String>();
-		if (this.n == 1 && this.clusterer != null) {
-			String cluster = this.clusterer.getCluster(this.cleanFn.transform(ngram.get(0)));
-			if (cluster == null)
-				return null;
-			for (int i = 2; i < cluster.length(); i *= 2) {
-				retNgrams.add(cluster.substring(0, i));
-			}
-			return retNgrams;
-		}
 		
 		StringBuilder ngramGlue = new StringBuilder();
 		for (String gram : ngram) {
@@ -223,17 +1035,38 @@ public abstract class FeatureNGram<D extends Datum<L>, L> extends Feature<D, L>
 
 	@Override
 	public String getVocabularyTerm(int index) {
+		if (this.hashBits > 0)
+			return this.hashNames.get(index);
 		return this.vocabulary.reverseGet(index);
 	}
 
 	@Override
 	protected boolean setVocabularyTerm(int index, String term) {
-		this.vocabulary.put(term, index);
+		if (this.hashBits > 0) {
+			this.hashNames.put(index, term);
+		} else {
+			this.vocabulary.put(term, index);
+			this.keyVocabulary = null;
+		}
 		return true;
 	}
 
+	/**
+	 * Hashed vectors only depend on the parameters (including hashBits), so
+	 * the identity of a hashed feature leaves out the sampled component 
+	 * names, and doesn't need to walk all 2^hashBits components.
+	 */
+	@Override
+	public String getIdentityString() {
+		if (this.hashBits > 0)
+			return toString(false);
+		return super.getIdentityString();
+	}
+	
 	@Override
 	public int getVocabularySize() {
+		if (this.hashBits > 0)
+			return 1 << this.hashBits;
 		return this.vocabulary.size();
 	}
 
@@ -256,6 +1089,10 @@ public abstract class FeatureNGram<D extends Datum<L>, L> extends Feature<D, L>
 			return (this.tokenExtractor == null) ? null : this.tokenExtractor.toString();
 		else if (parameter.equals("scale"))
 			return this.scale.toString();
+		else if (parameter.equals("hashBits"))
+			return String.valueOf(this.hashBits);
+		else if (parameter.equals("maxHashNames"))
+			return String.valueOf(this.maxHashNames);
 		return null;
 	}
 
@@ -263,16 +1100,30 @@ public abstract class FeatureNGram<D extends Datum<L>, L> extends Feature<D, L>
 	protected boolean setParameterValue(String parameter, String parameterValue, Datum.Tools<D, L> datumTools) {
 		if (parameter.equals("minFeatureOccurrence")) 
 			this.minFeatureOccurrence = Integer.valueOf(parameterValue);
-		else if (parameter.equals("n"))
+		else if (parameter.equals("n")) {
 			this.n = Integer.valueOf(parameterValue);
-		else if (parameter.equals("cleanFn"))
+			this.sentenceNGramCache = null;
+			this.sentenceNGramKeyCache = null;
+		} else if (parameter.equals("cleanFn")) {
 			this.cleanFn = datumTools.getDataTools().getCleanFn(parameterValue);
-		else if (parameter.equals("clusterer"))
+			this.tokenDictionary = null;
+			this.sentenceNGramCache = null;
+			this.sentenceNGramKeyCache = null;
+			this.keyVocabulary = null;
+		} else if (parameter.equals("clusterer")) {
 			this.clusterer = datumTools.getDataTools().getBrownClusterer(parameterValue);
-		else if (parameter.equals("tokenExtractor"))
+			this.tokenDictionary = null;
+			this.sentenceNGramCache = null;
+			this.sentenceNGramKeyCache = null;
+			this.keyVocabulary = null;
+		} else if (parameter.equals("tokenExtractor"))
 			this.tokenExtractor = datumTools.getTokenSpanExtractor(parameterValue);
 		else if (parameter.equals("scale"))
 			this.scale = Scale.valueOf(parameterValue);
+		else if (parameter.equals("hashBits"))
+			this.hashBits = Integer.valueOf(parameterValue);
+		else if (parameter.equals("maxHashNames"))
+			this.maxHashNames = Integer.valueOf(parameterValue);
 		else
 			return false;
 		return true;
@@ -20,7 +20,6 @@ package ark.data.feature;
 
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import ark.data.annotation.Datum;
@@ -36,7 +35,10 @@ import ark.data.annotation.nlp.TokenSpan;
  * k of n-grams surrounding the tokens given by T(d) in a source text document,
  * and c(v \in S) computes the number of occurrences of n-gram v in S.  The resulting
  * vector is given to methods in ark.data.feature.FeatureNGram to be normalized
- * and scaled in some way.
+ * and scaled in some way.  Context windows are sliced from the n-grams 
+ * of the whole sentence (see FeatureNGram.getSentenceNGrams, and 
+ * FeatureNGram.getSentenceNGramKeys for packed n-grams), which are
+ * shared by all datums in the sentence.
  * 
  * @author Bill McDowell
  *
@@ -56,19 +58,20 @@ public class FeatureNGramContext<D extends Datum<L>, L> extends FeatureNGram<D,
 	
 	@Override
 	protected Map<String, Integer> getNGramsForDatum(D datum) {
-		TokenSpan[] tokenSpans = this.tokenExtractor.extract(datum);
+		TokenSpan[] tokenSpans = extractTokenSpans(datum);
 		Map<String, Integer> retNgrams = new HashMap<String, Integer>();
 		
 		for (TokenSpan tokenSpan : tokenSpans) {
 			if (tokenSpan.getSentenceIndex() < 0)
 				continue;
-			List<String> tokens = tokenSpan.getDocument().getSentenceTokens(tokenSpan.getSentenceIndex());
-			if (tokens == null)
+			String[][] sentenceNGrams = getSentenceNGrams(tokenSpan.getDocument(), tokenSpan.getSentenceIndex());
+			if (sentenceNGrams == null)
 				continue;
+			int tokenCount = sentenceNGrams.length + this.n - 1;
 			int startIndex = Math.max(0, tokenSpan.getStartTokenIndex() - this.contextWindowSize);
-			int endIndex = Math.min(tokens.size(), tokenSpan.getEndTokenIndex() + this.contextWindowSize) - this.n + 1;
+			int endIndex = Math.min(tokenCount, tokenSpan.getEndTokenIndex() + this.contextWindowSize) - this.n + 1;
 			for (int i = startIndex; i < endIndex; i++) {				
-				List<String> ngrams = getCleanNGrams(tokens, i);
+				String[] ngrams = sentenceNGrams[i];
 				if (ngrams != null) {
 					for (String ngram : ngrams) {
 						if (!retNgrams.containsKey(ngram))
@@ -81,6 +84,40 @@ public class FeatureNGramContext<D extends Datum<L>, L> extends FeatureNGram<D,
 		}
 		return retNgrams;
 	}
+	
+	@Override
+	protected boolean packsNGrams() {
+		return true;
+	}
+	
+	@Override
+	protected NGramCounts getPackedNGramsForDatum(D datum) {
+		TokenSpan[] tokenSpans = extractTokenSpans(datum);
+		NGramCounts retNgrams = new NGramCounts();
+		
+		for (TokenSpan tokenSpan : tokenSpans) {
+			if (tokenSpan.getSentenceIndex() < 0)
+				continue;
+			SentenceNGramKeys sentenceNGramKeys = getSentenceNGramKeys(tokenSpan.getDocument(), tokenSpan.getSentenceIndex());
+			if (sentenceNGramKeys == null)
+				continue;
+			int tokenCount = sentenceNGramKeys.size() + this.n - 1;
+			int startIndex = Math.max(0, tokenSpan.getStartTokenIndex() - this.contextWindowSize);
+			int endIndex = Math.min(tokenCount, tokenSpan.getEndTokenIndex() + this.contextWindowSize) - this.n + 1;
+			for (int i = startIndex; i < endIndex; i++) {
+				long[] keys = sentenceNGramKeys.getKeys(i);
+				if (keys != null)
+					for (long key : keys)
+						retNgrams.add(key);
+				
+				String[] unpackedNGrams = sentenceNGramKeys.getUnpackedNGrams(i);
+				if (unpackedNGrams != null)
+					for (String ngram : unpackedNGrams)
+						retNgrams.add(ngram);
+			}
+		}
+		return retNgrams;
+	}
 
 	@Override
 	public String getGenericName() {
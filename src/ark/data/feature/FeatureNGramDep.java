@@ -76,7 +76,7 @@ public class FeatureNGramDep<D extends Datum<L>, L> extends FeatureNGram<D, L> {
 	
 	@Override
 	protected Map<String, Integer> getNGramsForDatum(D datum) {
-		TokenSpan[] tokenSpans = this.tokenExtractor.extract(datum);
+		TokenSpan[] tokenSpans = extractTokenSpans(datum);
 		Map<String, Integer> retNgrams = new HashMap<String, Integer>();
 		
 		for (TokenSpan tokenSpan : tokenSpans) {
@@ -25,8 +25,9 @@ import java.util.Set;
 
 import ark.data.annotation.Datum;
 import ark.data.annotation.nlp.TokenSpan;
-import ark.util.BidirectionalLookupTable;
 import ark.util.CounterTable;
+import ark.util.SparseVectorBuilder;
+import ark.util.Vocabulary;
 
 /**
  * 
@@ -42,7 +43,7 @@ import ark.util.CounterTable;
  */
 
 public class FeatureNGramPoS<D extends Datum<L>, L> extends Feature<D, L> {
-	protected BidirectionalLookupTable<String, Integer> vocabulary;
+	protected Vocabulary vocabulary;
 	
 	protected int minFeatureOccurrence;
 	protected Datum.Tools.TokenSpanExtractor<D, L> tokenExtractor;
@@ -52,32 +53,36 @@ public class FeatureNGramPoS<D extends Datum<L>, L> extends Feature<D, L> {
 	protected String[] parameterNames = {"minFeatureOccurrence", "tokenExtractor", "PoS", "tokensBeforeTokenSpan", "tokensAfterTokenSpan"};
 	
 	public FeatureNGramPoS(){
-		vocabulary = new BidirectionalLookupTable<String, Integer>();
+		vocabulary = new Vocabulary();
 	}
 	
 	@Override
 	public boolean init(FeaturizedDataSet<D, L> dataSet) {
-		CounterTable<String> counter = new CounterTable<String>();
-		for (D datum : dataSet) {
-			Set<String> nGramPoS = getNGramPoSForDatum(datum);
-			for (String ngram : nGramPoS) {
-				counter.incrementCount(ngram);
+		CounterTable<String> counter = dataSet.countDatumKeys(new FeaturizedDataSet.DatumKeyExtractor<D, String>() {
+			public Iterable<String> extractKeys(D datum) {
+				return getNGramPoSForDatum(datum);
 			}
-		}
+		}, this.minFeatureOccurrence);
+		if (counter == null)
+			return false;
 		
 		counter.removeCountsLessThan(this.minFeatureOccurrence);
-		this.vocabulary = new BidirectionalLookupTable<String, Integer>(counter.buildIndex());
+		this.vocabulary = new Vocabulary(counter.getSortedItems());
 		
 		return true;
 	}
 	
 	private Set<String> getNGramPoSForDatum(D datum){
-		Set<String> nGramPoS = new HashSet<String>();
+		Set<String> nGramPoS = getCachedRawValue(datum);
+		if (nGramPoS != null)
+			return nGramPoS;
+		
+		nGramPoS = new HashSet<String>();
 		TokenSpan[] tokenSpans = this.tokenExtractor.extract(datum);
 		
 		for (TokenSpan tokenSpan : tokenSpans) {
 			if (tokenSpan.getStartTokenIndex() < 0){
-				return nGramPoS;
+				break;
 			}
 			int sentLength = tokenSpan.getDocument().getSentenceTokenCount(tokenSpan.getSentenceIndex());
 			
@@ -101,20 +106,26 @@ public class FeatureNGramPoS<D extends Datum<L>, L> extends Feature<D, L> {
 			}
 		}
 		
+		setCachedRawValue(datum, nGramPoS);
 		return nGramPoS;
 	}
 	
 	@Override
 	public Map<Integer, Double> computeVector(D datum) {
+		return computeVectorAsMap(datum);
+	}
+	
+	@Override
+	public boolean computeVector(D datum, int offset, SparseVectorBuilder vector) {
 		Set<String> posForDatum = getNGramPoSForDatum(datum);
-		Map<Integer, Double> vector = new HashMap<Integer, Double>();
 		
 		for (String ngramPoS : posForDatum) {
-			if (this.vocabulary.containsKey(ngramPoS))
-				vector.put(this.vocabulary.get(ngramPoS), 1.0);		
+			int index = this.vocabulary.get(ngramPoS);
+			if (index >= 0)
+				vector.add(index + offset, 1.0);		
 		}
 
-		return vector;
+		return true;
 	}
 
 
@@ -19,7 +19,6 @@
 package ark.data.feature;
 
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import ark.data.annotation.Datum;
@@ -38,6 +37,10 @@ import ark.data.annotation.nlp.TokenSpan;
  * vector is given to methods in ark.data.feature.FeatureNGram to be normalized
  * and scaled in some way.
  * 
+ * The n-grams of each sentence are computed once and shared by all datums
+ * in the sentence (see FeatureNGram.getSentenceNGrams, and 
+ * FeatureNGram.getSentenceNGramKeys for packed n-grams).
+ * 
  * @author Bill McDowell
  *
  * @param <D> datum type
@@ -48,18 +51,18 @@ public class FeatureNGramSentence<D extends Datum<L>, L> extends FeatureNGram<D,
 
 	@Override
 	protected Map<String, Integer> getNGramsForDatum(D datum) {
-		TokenSpan[] tokenSpans = this.tokenExtractor.extract(datum);
+		TokenSpan[] tokenSpans = extractTokenSpans(datum);
 		Map<String, Integer> retNgrams = new HashMap<String, Integer>();
 		
 		for (TokenSpan tokenSpan : tokenSpans) {
 			if (tokenSpan.getSentenceIndex() < 0)
 				continue;
 			
-			List<String> tokens = tokenSpan.getDocument().getSentenceTokens(tokenSpan.getSentenceIndex());
-			if (tokens == null)
+			String[][] sentenceNGrams = getSentenceNGrams(tokenSpan.getDocument(), tokenSpan.getSentenceIndex());
+			if (sentenceNGrams == null)
 				continue;
-			for (int i = 0; i < tokens.size()-this.n+1; i++) {
-				List<String> ngrams = getCleanNGrams(tokens, i);
+			for (int i = 0; i < sentenceNGrams.length; i++) {
+				String[] ngrams = sentenceNGrams[i];
 				if (ngrams != null) {
 					for (String ngram : ngrams) {
 						if (this.n == 1) {
@@ -89,6 +92,68 @@ public class FeatureNGramSentence<D extends Datum<L>, L> extends FeatureNGram<D,
 		}
 		return retNgrams;
 	}
+	
+	@Override
+	protected boolean packsNGrams() {
+		return true;
+	}
+	
+	@Override
+	protected NGramCounts getPackedNGramsForDatum(D datum) {
+		TokenSpan[] tokenSpans = extractTokenSpans(datum);
+		NGramCounts retNgrams = new NGramCounts();
+		
+		for (TokenSpan tokenSpan : tokenSpans) {
+			if (tokenSpan.getSentenceIndex() < 0)
+				continue;
+			
+			SentenceNGramKeys sentenceNGramKeys = getSentenceNGramKeys(tokenSpan.getDocument(), tokenSpan.getSentenceIndex());
+			if (sentenceNGramKeys == null)
+				continue;
+			for (int i = 0; i < sentenceNGramKeys.size(); i++) {
+				long[] keys = sentenceNGramKeys.getKeys(i);
+				if (keys != null) {
+					for (long key : keys) {
+						// Unigrams are split on spaces as in getNGramsForDatum
+						String ngram = (this.n == 1) ? getNGram(key) : null;
+						if (ngram != null && containsWhitespace(ngram)) {
+							for (String ngramPart : ngram.split("\\s+"))
+								addNGram(retNgrams, ngramPart);
+						} else {
+							retNgrams.add(key);
+						}
+					}
+				}
+				
+				String[] unpackedNGrams = sentenceNGramKeys.getUnpackedNGrams(i);
+				if (unpackedNGrams != null) {
+					for (String ngram : unpackedNGrams) {
+						if (this.n == 1 && containsWhitespace(ngram)) {
+							for (String ngramPart : ngram.split("\\s+"))
+								addNGram(retNgrams, ngramPart);
+						} else {
+							retNgrams.add(ngram);
+						}
+					}
+				}
+			}
+		}
+		return retNgrams;
+	}
+	
+	/**
+	 * @param str
+	 * @return true if str contains a white-space character in the sense of
+	 * the regular expression class \\s
+	 */
+	private static boolean containsWhitespace(String str) {
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r')
+				return true;
+		}
+		return false;
+	}
 
 	@Override
 	public String getGenericName() {
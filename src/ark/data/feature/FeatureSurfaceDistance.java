@@ -24,8 +24,8 @@ import java.util.Map;
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools;
 import ark.data.annotation.nlp.TokenSpan;
-import ark.util.BidirectionalLookupTable;
 import ark.util.CounterTable;
+import ark.util.Vocabulary;
 
 /**
  * FIXME Fill this in sometime maybe
@@ -37,14 +37,14 @@ import ark.util.CounterTable;
  */
 public class FeatureSurfaceDistance <D extends Datum<L>, L> extends Feature<D, L>{
 	
-	protected BidirectionalLookupTable<String, Integer> vocabulary;
+	protected Vocabulary vocabulary;
 
 	protected Datum.Tools.TokenSpanExtractor<D, L> sourceTokenExtractor;
 	protected Datum.Tools.TokenSpanExtractor<D, L> targetTokenExtractor;
 	protected String[] parameterNames = {"sourceTokenExtractor", "targetTokenExtractor", "PoS"};
 	
 	public FeatureSurfaceDistance(){
-		vocabulary = new BidirectionalLookupTable<String, Integer>();
+		vocabulary = new Vocabulary();
 	}
 
 	@Override
@@ -54,7 +54,7 @@ public class FeatureSurfaceDistance <D extends Datum<L>, L> extends Feature<D, L
 		for (D datum : dataSet) {
 			counter.incrementCount(findDistance(datum));
 		}
-		this.vocabulary = new BidirectionalLookupTable<String, Integer>(counter.buildIndex());
+		this.vocabulary = new Vocabulary(counter.getItems());
 		return true;
 	}
 	
@@ -67,7 +67,9 @@ public class FeatureSurfaceDistance <D extends Datum<L>, L> extends Feature<D, L
 	@Override
 	public Map<Integer, Double> computeVector(D datum) {
 		Map<Integer, Double> vect = new HashMap<Integer, Double>();
-		vect.put(vocabulary.get(findDistance(datum)), 1.0);
+		int index = vocabulary.get(findDistance(datum));
+		if (index >= 0)
+			vect.put(index, 1.0);
 		return vect;
 	}
 
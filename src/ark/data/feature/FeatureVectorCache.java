@@ -0,0 +1,361 @@
+/**
+ * Copyright 2014 Bill McDowell 
+ *
+ * This file is part of theMess (https://github.com/forkunited/theMess)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy 
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package ark.data.feature;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ark.util.SparseVector;
+
+/**
+ * FeatureVectorCache stores the feature vectors computed for datums
+ * in a FeaturizedDataSet, keyed by datum id.  It keeps counts of 
+ * cache hits and misses so that it's possible to check how often 
+ * feature vectors are recomputed (for example, after the first 
+ * training iteration of a model, every request for a vector should
+ * be a hit).
+ * 
+ * By default, the cache holds every vector in memory.  Optionally, it
+ * can be given a budget of bytes for the vectors that it keeps in memory.  
+ * When the budget is exceeded, the least recently used vectors are 
+ * evicted and written to a spill file, and they're read back from the
+ * spill file when they're requested again.  Vectors never change once 
+ * they're computed, so each is written to the spill file at most once.
+ * The spill file is closed and deleted by close.
+ * 
+ * @author Bill McDowell
+ *
+ */
+public class FeatureVectorCache {
+	private Map<Integer, SparseVector> vectors;
+	private AtomicLong hits;
+	private AtomicLong misses;
+	
+	// Used only if the cache has a memory budget
+	private long maxBytes;
+	private long residentBytes;
+	private File spillFile;
+	private FileChannel spillChannel;
+	private Map<Integer, Long> spillOffsets; // Map from datum ids to positions of spilled vectors in spill file
+	private AtomicLong evictions;
+	private AtomicLong spillReads;
+	
+	public FeatureVectorCache() {
+		this(-1, null);
+	}
+	
+	/**
+	 * @param maxBytes - Budget of bytes for vectors held in memory, or a negative
+	 * number if there is no budget
+	 * @param spillFile - File to which evicted vectors are written
+	 */
+	public FeatureVectorCache(long maxBytes, File spillFile) {
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.maxBytes = maxBytes;
+		this.residentBytes = 0;
+		this.spillFile = spillFile;
+		this.spillOffsets = new HashMap<Integer, Long>();
+		this.evictions = new AtomicLong();
+		this.spillReads = new AtomicLong();
+		
+		if (isBounded())
+			this.vectors = new LinkedHashMap<Integer, SparseVector>(16, 0.75f, true); // In order of access for LRU eviction
+		else
+			this.vectors = new ConcurrentHashMap<Integer, SparseVector>();
+	}
+	
+	/**
+	 * @return true if the cache has a budget of bytes for the vectors
+	 * that it holds in memory
+	 */
+	public boolean isBounded() {
+		return this.maxBytes >= 0;
+	}
+	
+	/**
+	 * @param datumId
+	 * @return the cached vector for the datum with the given id, or null
+	 * if there is no cached vector.  The request is counted as either a
+	 * hit or a miss.
+	 */
+	public SparseVector get(int datumId) {
+		SparseVector vector = null;
+		if (!isBounded()) {
+			vector = this.vectors.get(datumId);
+		} else {
+			synchronized (this) {
+				vector = this.vectors.get(datumId);
+				if (vector == null && this.spillOffsets.containsKey(datumId)) {
+					vector = readSpilled(this.spillOffsets.get(datumId));
+					if (vector != null) {
+						this.spillReads.incrementAndGet();
+						if (!insert(datumId, vector))
+							return null;
+					}
+				}
+			}
+		}
+		
+		if (vector == null)
+			this.misses.incrementAndGet();
+		else
+			this.hits.incrementAndGet();
+		return vector;
+	}
+	
+	public boolean contains(int datumId) {
+		if (!isBounded())
+			return this.vectors.containsKey(datumId);
+		
+		synchronized (this) {
+			return this.vectors.containsKey(datumId) || this.spillOffsets.containsKey(datumId);
+		}
+	}
+	
+	public boolean put(int datumId, SparseVector vector) {
+		if (!isBounded()) {
+			this.vectors.put(datumId, vector);
+			return true;
+		}
+		
+		synchronized (this) {
+			return insert(datumId, vector);
+		}
+	}
+	
+	public boolean clear() {
+		if (!isBounded()) {
+			this.vectors.clear();
+			return true;
+		}
+		
+		synchronized (this) {
+			this.vectors.clear();
+			this.spillOffsets.clear();
+			this.residentBytes = 0;
+			
+			if (this.spillChannel != null) {
+				try {
+					this.spillChannel.truncate(0);
+				} catch (IOException e) {
+					e.printStackTrace();
+					return false;
+				}
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Removes all vectors, closes the spill file, and deletes it.  The cache
+	 * should be closed when it's discarded (e.g. when a data set's cache is 
+	 * replaced).  It can still be used afterward, in which case evicted 
+	 * vectors are written to a new temporary spill file.
+	 * 
+	 * @return true if the cache has been closed
+	 */
+	public boolean close() {
+		if (!isBounded())
+			return clear();
+		
+		synchronized (this) {
+			this.vectors.clear();
+			this.spillOffsets.clear();
+			this.residentBytes = 0;
+			
+			boolean closed = true;
+			if (this.spillChannel != null) {
+				try {
+					this.spillChannel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+					closed = false;
+				}
+				this.spillChannel = null;
+			}
+			
+			if (this.spillFile != null) {
+				if (this.spillFile.exists() && !this.spillFile.delete())
+					closed = false;
+				this.spillFile = null;
+			}
+			
+			return closed;
+		}
+	}
+	
+	/**
+	 * @return the number of vectors in the cache (including vectors that 
+	 * have been spilled to disk)
+	 */
+	public int size() {
+		if (!isBounded())
+			return this.vectors.size();
+		
+		synchronized (this) {
+			int size = this.spillOffsets.size();
+			for (Integer datumId : this.vectors.keySet())
+				if (!this.spillOffsets.containsKey(datumId))
+					size++;
+			return size;
+		}
+	}
+	
+	public long getHitCount() {
+		return this.hits.get();
+	}
+	
+	public long getMissCount() {
+		return this.misses.get();
+	}
+	
+	/**
+	 * @return the approximate number of bytes taken up by vectors 
+	 * held in memory (only tracked if the cache has a budget)
+	 */
+	public synchronized long getResidentBytes() {
+		return this.residentBytes;
+	}
+	
+	public long getEvictionCount() {
+		return this.evictions.get();
+	}
+	
+	public long getSpillReadCount() {
+		return this.spillReads.get();
+	}
+	
+	public String toString() {
+		if (!isBounded())
+			return "FeatureVectorCache(size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ")";
+		else
+			return "FeatureVectorCache(size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount() 
+					+ ", residentBytes=" + getResidentBytes() + ", maxBytes=" + this.maxBytes 
+					+ ", evictions=" + getEvictionCount() + ", spillReads=" + getSpillReadCount() + ")";
+	}
+	
+	/* Must hold the lock on this */
+	private boolean insert(int datumId, SparseVector vector) {
+		SparseVector prevVector = this.vectors.put(datumId, vector);
+		if (prevVector != null)
+			this.residentBytes -= prevVector.getSizeInBytes();
+		this.residentBytes += vector.getSizeInBytes();
+		
+		Iterator<Entry<Integer, SparseVector>> iterator = this.vectors.entrySet().iterator();
+		while (this.residentBytes > this.maxBytes && iterator.hasNext()) {
+			Entry<Integer, SparseVector> entry = iterator.next();
+			if (entry.getKey() == datumId) // Newly inserted vector is most recently used
+				break;
+			
+			if (!this.spillOffsets.containsKey(entry.getKey())) {
+				long spillOffset = writeSpilled(entry.getValue());
+				if (spillOffset < 0)
+					return false;
+				this.spillOffsets.put(entry.getKey(), spillOffset);
+			}
+			
+			this.residentBytes -= entry.getValue().getSizeInBytes();
+			this.evictions.incrementAndGet();
+			iterator.remove();
+		}
+		
+		return true;
+	}
+	
+	/* Must hold the lock on this */
+	@SuppressWarnings("resource")
+	private long writeSpilled(SparseVector vector) {
+		try {
+			if (this.spillChannel == null) {
+				if (this.spillFile == null) {
+					this.spillFile = File.createTempFile("FeatureVectorCache", ".spill");
+					this.spillFile.deleteOnExit();
+				}
+				this.spillChannel = new RandomAccessFile(this.spillFile, "rw").getChannel();
+				this.spillChannel.truncate(0);
+			}
+			
+			ByteBuffer buffer = ByteBuffer.allocate(8 + 4*vector.size() + 8*vector.getValueCount());
+			buffer.putInt(vector.size());
+			buffer.putInt(vector.getValueCount());
+			for (int i = 0; i < vector.size(); i++)
+				buffer.putInt(vector.getIndex(i));
+			for (int i = 0; i < vector.getValueCount(); i++)
+				buffer.putDouble(vector.getValue(i));
+			buffer.flip();
+			
+			long offset = this.spillChannel.size();
+			long position = offset;
+			while (buffer.hasRemaining())
+				position += this.spillChannel.write(buffer, position);
+			
+			return offset;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return -1;
+		}
+	}
+	
+	/* Must hold the lock on this */
+	private SparseVector readSpilled(long offset) {
+		try {
+			ByteBuffer sizeBuffer = ByteBuffer.allocate(8);
+			readFully(sizeBuffer, offset);
+			int size = sizeBuffer.getInt();
+			int valueCount = sizeBuffer.getInt();
+			
+			ByteBuffer buffer = ByteBuffer.allocate(4*size + 8*valueCount);
+			readFully(buffer, offset + 8);
+			
+			int[] indices = new int[size];
+			double[] values = new double[valueCount];
+			for (int i = 0; i < size; i++)
+				indices[i] = buffer.getInt();
+			for (int i = 0; i < valueCount; i++)
+				values[i] = buffer.getDouble();
+			
+			return new SparseVector(indices, values, 0, size, 0, valueCount);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = this.spillChannel.read(buffer, position);
+			if (read < 0)
+				throw new IOException("Unexpected end of spill file " + this.spillFile.getAbsolutePath());
+			position += read;
+		}
+		buffer.flip();
+	}
+}
@@ -18,16 +18,35 @@
 
 package ark.data.feature;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.TreeMap;
 
+import ark.data.CachedStringTransform;
+import ark.data.DataTools;
 import ark.data.annotation.DataSet;
 import ark.data.annotation.Datum;
+import ark.util.BoundedCounterTable;
+import ark.util.CounterTable;
+import ark.util.LongIntHashMap;
+import ark.util.OutputWriter;
+import ark.util.SparseVector;
+import ark.util.SparseVectorBlock;
+import ark.util.SparseVectorBuilder;
 
 /**
  * DataSet represents a collection of labeled and/or unlabeled 'datums'
@@ -35,10 +54,25 @@ import ark.data.annotation.Datum;
  * evaluate models.  
  * 
  * The current implementation computes the features on demand as their
- * values are requested, and permanently caches their values in memory.
- * In the future, this might be improved so that some values can be
- * evicted from the cache and possibly serialized/deserialized from
- * disk.
+ * values are requested, and permanently caches their values in memory
+ * (keyed by datum id, and packed into primitive arrays--see 
+ * ark.data.feature.FeatureVectorCache).
+ * The data set can also be frozen into a compressed sparse row matrix
+ * (ark.data.feature.FeatureMatrix) once all of its vectors have been 
+ * computed.
+ * 
+ * For large data sets, the cache can be given a budget of bytes (see
+ * setMaxFeatureVectorCacheBytes), in which case the least recently used
+ * vectors are evicted to a spill file on disk and read back on demand.
+ * 
+ * Feature vectors can also be reused across runs through a 
+ * persistent cache on disk (see setPersistentFeatureCache).
+ * 
+ * When all vectors are precomputed (see precomputeFeatures), blocks of 
+ * datums are featurized one feature at a time through 
+ * Feature.computeVectors, so that each feature's loop over the datums 
+ * stays in one class, and then the features' vectors for each datum are
+ * packed together.
  * 
  * @author Bill McDowell
  *
@@ -46,14 +80,35 @@ import ark.data.annotation.Datum;
  * @param <L> Datum label type
  */
 public class FeaturizedDataSet<D extends Datum<L>, L> extends DataSet<D, L> {
+	private static final int FEATURE_BATCH_SIZE = 256; // Maximum number of datums featurized one feature at a time (see computeFeatureVocabularyVectors)
+	
 	private String name;
 	private int maxThreads;
 	
 	private Map<String, Feature<D, L>> referencedFeatures; // Maps from reference names to features
+	private Set<Feature<D, L>> dependencyFeatures; // Features whose vectors are used by other features (see getFeatureVector)
 	private TreeMap<Integer, Feature<D, L>> features; // Maps from the feature's starting vocabulary index to the feature
-	private Map<Integer, String> featureVocabularyNames; // Sparse map from indices to names
-	private Map<D, Map<Integer, Double>> featureVocabularyValues; // Map from data to indices to values
+	private FeatureNameTable featureNameTable; // Names of vocabulary components (null until names are requested)
+	private FeatureVectorCache featureVocabularyValues; // Map from datum ids to vectors of feature values
+	private FeatureMatrix featureMatrix; // Frozen feature vectors (null unless the data set has been frozen)
+	private PersistentFeatureCache persistentFeatureCache; // Vectors computed by features in earlier runs (or null)
+	// Builders reused by each thread to pack the features' values for a datum
+	private ThreadLocal<SparseVectorBuilder> vectorBuilders = new ThreadLocal<SparseVectorBuilder>() {
+		@Override
+		protected SparseVectorBuilder initialValue() {
+			return new SparseVectorBuilder();
+		}
+	};
 	private int featureVocabularySize;
+	// Vectors computed by features for the most recent datum on each thread (see getFeatureVector)
+	private static ThreadLocal<FeatureVectorMemo> featureVectorMemos = new ThreadLocal<FeatureVectorMemo>() {
+		@Override
+		protected FeatureVectorMemo initialValue() {
+			return new FeatureVectorMemo();
+		}
+	};
+	private static AtomicInteger featureGraphVersion = new AtomicInteger(); // Incremented whenever a feature is added to a data set
+	private int maxVocabularyCounterSize; // Capacity of bounded tables used to count vocabulary candidates (0 for exact counting)
 	
 	public FeaturizedDataSet(String name, Datum.Tools<D, L> datumTools, Datum.Tools.LabelMapping<L> labelMapping) {
 		this(name, 1, datumTools, labelMapping);
@@ -67,15 +122,16 @@ public class FeaturizedDataSet<D extends Datum<L>, L> extends DataSet<D, L> {
 		super(datumTools, labelMapping);
 		this.name = name;
 		this.referencedFeatures = new HashMap<String, Feature<D, L>>();
+		this.dependencyFeatures = Collections.newSetFromMap(new IdentityHashMap<Feature<D, L>, Boolean>());
 		this.features = new TreeMap<Integer, Feature<D, L>>();
 		this.maxThreads = maxThreads;
 		 
 		this.featureVocabularySize = 0;
+		this.maxVocabularyCounterSize = 0;
+		this.featureVocabularyValues = new FeatureVectorCache();
+		
 		for (Feature<D, L> feature : features)
 			addFeature(feature);
-		
-		this.featureVocabularyNames = new ConcurrentHashMap<Integer, String>();
-		this.featureVocabularyValues = new ConcurrentHashMap<D, Map<Integer, Double>>();
 	}
 	
 	public String getName() {
@@ -86,6 +142,16 @@ public class FeaturizedDataSet<D extends Datum<L>, L> extends DataSet<D, L> {
 		return this.maxThreads;
 	}
 	
+	/**
+	 * Adds a datum to the data set.  If the data set has been frozen 
+	 * (see freeze), then it is thawed first.
+	 */
+	@Override
+	public boolean add(D datum) {
+		thaw();
+		return super.add(datum);
+	}
+	
 	/**
 	 * @param feature
 	 * @return true if the feature has been added.  This does *not* call
@@ -106,11 +172,47 @@ public class FeaturizedDataSet<D extends Datum<L>, L> extends DataSet<D, L> {
 	 * refers to FeaturizedDataSet, then the required feature should be 
 	 * set to be 'ignored'.
 	 * 
+	 * The references between features (see Feature.getFeatureReferences) 
+	 * form a dependency graph.  A feature's references must already have
+	 * been added when it is added, so features are always added (and their
+	 * vectors computed) in topological order, and a feature whose 
+	 * references are missing or lead back to itself is rejected (as is a
+	 * feature that has already been added).  While 
+	 * computing the vector for a datum, each referenced feature is computed 
+	 * at most once, and its vector is passed to the features that depend 
+	 * on it through getFeatureVector.
+	 * 
 	 */
 	public boolean addFeature(Feature<D, L> feature) {
+		if (this.features.containsValue(feature)) {
+			// Adding again would give the feature a second block of columns
+			getDatumTools().getDataTools().getOutputWriter().debugWriteln("Error: Feature " + feature.getReferenceName() + " has already been added to " + this.name);
+			return false;
+		}
+		
+		List<Feature<D, L>> dependencies = new ArrayList<Feature<D, L>>();
+		for (String reference : feature.getFeatureReferences()) {
+			Feature<D, L> dependency = this.referencedFeatures.get(reference);
+			if (dependency == null) {
+				getDatumTools().getDataTools().getOutputWriter().debugWriteln("Error: Feature " + feature.getReferenceName() + " refers to missing feature " + reference + " in " + this.name);
+				return false;
+			} else if (dependsOn(dependency, feature)) {
+				getDatumTools().getDataTools().getOutputWriter().debugWriteln("Error: Feature " + feature.getReferenceName() + " has a cyclic reference to " + reference + " in " + this.name);
+				return false;
+			}
+			dependencies.add(dependency);
+		}
+		this.dependencyFeatures.addAll(dependencies);
+		FeaturizedDataSet.featureGraphVersion.incrementAndGet();
+		
 		if (!feature.isIgnored()) {
 			this.features.put(this.featureVocabularySize, feature);
 			this.featureVocabularySize += feature.getVocabularySize();
+			this.featureNameTable = null;
+			
+			// Cached vectors don't include the new feature's values
+			this.featureMatrix = null;
+			this.featureVocabularyValues.clear();
 		}
 		if (feature.getReferenceName() != null)
 			this.referencedFeatures.put(feature.getReferenceName(), feature);
@@ -118,6 +220,82 @@ public class FeaturizedDataSet<D extends Datum<L>, L> extends DataSet<D, L> {
 		return true;
 	}
 	
+	/**
+	 * Initializes the given features on this data set and adds them to the 
+	 * data set (in order).  This gives the same result as calling init 
+	 * and then addFeature for each feature, but features that build their 
+	 * vocabularies by counting keys extracted from datums (see 
+	 * Feature.getVocabularyKeyExtractor) are initialized together in a 
+	 * single scan over the data.  Within the scan, features in the same 
+	 * group (e.g. n-gram features sharing a token extractor) are run 
+	 * one after the other on each datum so that they can share work
+	 * (e.g. extracted token spans).  Other features are initialized 
+	 * separately in order, after the features before them have been added
+	 * (so that, for example, conjunctions can refer to earlier features).
+	 * 
+	 * @param features
+	 * @return true if the features have been initialized and added
+	 */
+	public boolean initAndAddFeatures(List<Feature<D, L>> features) {
+		Map<String, List<Feature<D, L>>> featureGroups = new LinkedHashMap<String, List<Feature<D, L>>>();
+		for (Feature<D, L> feature : features) {
+			if (feature.getVocabularyKeyExtractor() == null)
+				continue;
+			String group = feature.getVocabularyKeyGroup();
+			if (!featureGroups.containsKey(group))
+				featureGroups.put(group, new ArrayList<Feature<D, L>>());
+			featureGroups.get(group).add(feature);
+		}
+		
+		List<Feature<D, L>> scannedFeatures = new ArrayList<Feature<D, L>>();
+		List<DatumKeyExtractor<D, String>> keyExtractors = new ArrayList<DatumKeyExtractor<D, String>>();
+		for (List<Feature<D, L>> featureGroup : featureGroups.values()) {
+			for (Feature<D, L> feature : featureGroup) {
+				scannedFeatures.add(feature);
+				keyExtractors.add(feature.getVocabularyKeyExtractor());
+			}
+		}
+		
+		int[] minCounts = new int[scannedFeatures.size()];
+		for (int i = 0; i < minCounts.length; i++)
+			minCounts[i] = scannedFeatures.get(i).getVocabularyMinCount();
+		
+		if (scannedFeatures.size() > 0) {
+			getDatumTools().getDataTools().getOutputWriter().debugWriteln("Counting vocabularies of " + scannedFeatures.size() + " features in " + featureGroups.size() + " groups for " + this.name + "...");
+			List<CounterTable<String>> counters = countDatumKeys(keyExtractors, minCounts);
+			if (counters == null)
+				return false;
+			for (int i = 0; i < scannedFeatures.size(); i++)
+				if (!scannedFeatures.get(i).initVocabulary(this, counters.get(i)))
+					return false;
+		}
+		
+		Set<Feature<D, L>> initializedFeatures = new HashSet<Feature<D, L>>(scannedFeatures);
+		for (Feature<D, L> feature : features) {
+			if (!initializedFeatures.contains(feature) && !feature.init(this))
+				return false;
+			if (!addFeature(feature))
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return true if feature is dependency, or if dependency depends on 
+	 * feature through a chain of references in this data set
+	 */
+	private boolean dependsOn(Feature<D, L> dependency, Feature<D, L> feature) {
+		if (dependency == feature)
+			return true;
+		for (String reference : dependency.getFeatureReferences()) {
+			Feature<D, L> nextDependency = this.referencedFeatures.get(reference);
+			if (nextDependency != null && dependsOn(nextDependency, feature))
+				return true;
+		}
+		return false;
+	}
+	
 	public Feature<D, L> getFeature(int index) {
 		return this.features.get(index);
 	}
@@ -126,6 +304,15 @@ public class FeaturizedDataSet<D extends Datum<L>, L> extends DataSet<D, L> {
 		return this.referencedFeatures.get(referenceName);
 	}
 	
+	/**
+	 * @return the starting vocabulary index of each feature in the data set 
+	 * that isn't ignored (in order).  The features can be retrieved from 
+	 * these indices using getFeature.
+	 */
+	public List<Integer> getFeatureStartIndices() {
+		return new ArrayList<Integer>(this.features.keySet());
+	}
+	
 	public int getFeatureCount() {
 		return this.features.size();
 	}
@@ -134,63 +321,900 @@ public class FeaturizedDataSet<D extends Datum<L>, L> extends DataSet<D, L> {
 		return this.featureVocabularySize;
 	}
 	
+	/**
+	 * @param indices
+	 * @return a map from the given indices to the names of the corresponding
+	 * components of the feature vocabulary.  The names are looked up in the
+	 * name table (see FeatureNameTable below), and cached for later requests.
+	 */
 	public Map<Integer, String> getFeatureVocabularyNamesForIndices(Iterable<Integer> indices) {
+		FeatureNameTable featureNameTable = getFeatureNameTable();
 		Map<Integer, String> names = new HashMap<Integer, String>();
-		Map<Integer, List<Integer>> featuresToIndices = new HashMap<Integer, List<Integer>>();
 		for (Integer index : indices) {
-			if (this.featureVocabularyNames.containsKey(index)) {
-				names.put(index, this.featureVocabularyNames.get(index));
-			} else {
-				Integer featureIndex = this.features.floorKey(index);
-				if (!featuresToIndices.containsKey(featureIndex))
-					featuresToIndices.put(featureIndex, new ArrayList<Integer>());
-				featuresToIndices.get(featureIndex).add(index - featureIndex);
-			}
-		}
-		
-		for (Entry<Integer, List<Integer>> featureToIndices : featuresToIndices.entrySet()) {
-			Feature<D, L> feature = this.features.get(featureToIndices.getKey());
-			Map<Integer, String> featureSpecificNames = feature.getSpecificShortNamesForIndices(featureToIndices.getValue());
-			for (Entry<Integer, String> featureSpecificIndexToName : featureSpecificNames.entrySet())
-				names.put(featureSpecificIndexToName.getKey() + featureToIndices.getKey(), featureSpecificIndexToName.getValue());
+			String name = featureNameTable.getName(index);
+			names.put(index, (name == null) ? featureNameTable.getPrefix(index) + "null" : name);
 		}
 		
-		this.featureVocabularyNames.putAll(names);
-		
 		return names;
 	}
 	
+	/**
+	 * @return names of all components of the feature vocabulary in order of 
+	 * their indices.  The names are looked up in the name table (see 
+	 * FeatureNameTable below), and cached for later requests.
+	 */
 	public List<String> getFeatureVocabularyNames() {
+		FeatureNameTable featureNameTable = getFeatureNameTable();
 		List<String> featureVocabularyNames = new ArrayList<String>(this.featureVocabularySize);
-		
-		for (Feature<D, L> feature : this.features.values()) {
-			featureVocabularyNames.addAll(feature.getSpecificShortNames()); // FIXME Maybe this should cache...
+		for (int i = 0; i < this.featureVocabularySize; i++) {
+			String name = featureNameTable.getName(i);
+			featureVocabularyNames.add((name == null) ? featureNameTable.getPrefix(i) : name);
 		}
 		
 		return featureVocabularyNames;
 	}
 	
+	private synchronized FeatureNameTable getFeatureNameTable() {
+		if (this.featureNameTable == null)
+			this.featureNameTable = new FeatureNameTable();
+		return this.featureNameTable;
+	}
+	
+	/**
+	 * FeatureNameTable resolves the names of components of the feature 
+	 * vocabulary.  The starting indices of the features are stored in
+	 * an array that is binary searched to find the feature for each index, 
+	 * and the names are materialized lazily into a map that is shared
+	 * by all requests (so that the table only grows with the names that are
+	 * requested, and not with the size of hashed vocabularies).  Components 
+	 * that have no vocabulary term in their features aren't stored (their 
+	 * names are just the features' prefixes).
+	 *
+	 */
+	private class FeatureNameTable {
+		private int[] featureStartIndices;
+		private List<Feature<D, L>> features;
+		private String[] featurePrefixes;
+		private ConcurrentHashMap<Integer, String> names;
+		
+		public FeatureNameTable() {
+			this.featureStartIndices = new int[FeaturizedDataSet.this.features.size()];
+			this.features = new ArrayList<Feature<D, L>>(FeaturizedDataSet.this.features.values());
+			this.featurePrefixes = new String[this.featureStartIndices.length];
+			this.names = new ConcurrentHashMap<Integer, String>();
+			
+			int i = 0;
+			for (Entry<Integer, Feature<D, L>> entry : FeaturizedDataSet.this.features.entrySet()) {
+				this.featureStartIndices[i] = entry.getKey();
+				this.featurePrefixes[i] = entry.getValue().getSpecificShortNamePrefix();
+				i++;
+			}
+		}
+		
+		public String getName(int index) {
+			String name = this.names.get(index);
+			if (name != null)
+				return name;
+			
+			int featureIndex = getFeatureIndex(index);
+			String term = this.features.get(featureIndex).getVocabularyTerm(index - this.featureStartIndices[featureIndex]);
+			if (term == null)
+				return null;
+			
+			name = this.featurePrefixes[featureIndex] + term;
+			this.names.put(index, name);
+			return name;
+		}
+		
+		public String getPrefix(int index) {
+			return this.featurePrefixes[getFeatureIndex(index)];
+		}
+		
+		private int getFeatureIndex(int index) {
+			int featureIndex = Arrays.binarySearch(this.featureStartIndices, index);
+			if (featureIndex < 0)
+				featureIndex = -featureIndex - 2;
+			return featureIndex;
+		}
+	}
+	
 	public Map<Integer, Double> getFeatureVocabularyValues(D datum) {
+		SparseVector vector = getFeatureVocabularyVector(datum);
+		if (vector == null)
+			return null;
+		return vector.toMap();
+	}
+	
+	/**
+	 * @param datum
+	 * @return a sparse vector of the values of the features for the datum.  
+	 * The vector is computed on the first request, and cached for later 
+	 * requests.  If a feature fails to compute its part of the vector, then
+	 * null is returned, and nothing is cached for the datum.
+	 */
+	public SparseVector getFeatureVocabularyVector(D datum) {
 		if (!this.data.containsKey(datum.getId()))
 			return null;
-		if (this.featureVocabularyValues.containsKey(datum.getId()))
-			return this.featureVocabularyValues.get(datum.getId());
-		
-		Map<Integer, Double> values = new HashMap<Integer, Double>();
-		for (Entry<Integer, Feature<D, L>> featureEntry : this.features.entrySet()) {
-			Map<Integer, Double> featureValues = featureEntry.getValue().computeVector(datum);
-			for (Entry<Integer, Double> featureValueEntry : featureValues.entrySet()) {
-				values.put(featureValueEntry.getKey() + featureEntry.getKey(), featureValueEntry.getValue());
+		
+		FeatureMatrix featureMatrix = this.featureMatrix;
+		if (featureMatrix != null)
+			return featureMatrix.getRowForDatum(datum.getId());
+		
+		SparseVector vector = this.featureVocabularyValues.get(datum.getId());
+		if (vector != null)
+			return vector;
+		
+		PersistentFeatureCache persistentFeatureCache = this.persistentFeatureCache;
+		long datumFingerprint = 0;
+		if (persistentFeatureCache != null)
+			datumFingerprint = getDatumTools().getDatumFingerprint(datum);
+		
+		FeatureVectorMemo memo = getFeatureVectorMemo(datum);
+		SparseVectorBuilder vectorBuilder = this.vectorBuilders.get();
+		vectorBuilder.clear();
+		for (Entry<Integer, Feature<D, L>> entry : this.features.entrySet()) {
+			int featureStartIndex = entry.getKey();
+			Feature<D, L> feature = entry.getValue();
+			
+			SparseVector featureValues = memo.vectors.get(feature);
+			if (featureValues == null && persistentFeatureCache != null)
+				featureValues = persistentFeatureCache.get(feature, datum.getId(), datumFingerprint);
+			
+			if (featureValues != null) {
+				for (int i = 0; i < featureValues.size(); i++)
+					vectorBuilder.add(featureValues.getIndex(i) + featureStartIndex, featureValues.getValue(i));
+			} else {
+				int featureStart = vectorBuilder.size();
+				if (!feature.computeVector(datum, featureStartIndex, vectorBuilder)) {
+					vectorBuilder.clear();
+					getDatumTools().getDataTools().getOutputWriter().debugWriteln("Error: Feature " + feature.toString() + " failed to compute a vector for datum " + datum.getId() + " in " + this.name);
+					return null;
+				}
+				if (persistentFeatureCache != null || this.dependencyFeatures.contains(feature))
+					featureValues = vectorBuilder.toVector(featureStart, vectorBuilder.size(), -featureStartIndex);
+				if (persistentFeatureCache != null)
+					persistentFeatureCache.put(feature, datum.getId(), datumFingerprint, featureValues);
+			}
+			
+			if (featureValues != null && this.dependencyFeatures.contains(feature))
+				memo.vectors.put(feature, featureValues);
+		}
+		
+		vector = vectorBuilder.toVector();
+		this.featureVocabularyValues.put(datum.getId(), vector);
+		
+		return vector;
+	}
+	
+	/**
+	 * @param datum
+	 * @param referenceName
+	 * @return the vector computed for the datum by the feature with the 
+	 * given reference name (with indices relative to the feature), or null
+	 * if there is no such feature (see getFeatureVector below)
+	 */
+	public SparseVector getFeatureVector(D datum, String referenceName) {
+		Feature<D, L> feature = this.referencedFeatures.get(referenceName);
+		if (feature == null)
+			return null;
+		return getFeatureVector(datum, feature);
+	}
+	
+	/**
+	 * This is used by features and constraints that are computed from the
+	 * values of other features (see Feature.getFeatureReferences).  The
+	 * vectors are remembered by each thread for the most recent datum, so
+	 * a feature that is referenced by several others (or that's also part 
+	 * of the data set's vectors) is only computed once per datum, even if
+	 * it's ignored.  Since the same feature objects are usually added to 
+	 * several data sets (e.g. train, dev, and test), the remembered vectors
+	 * are shared across data sets.
+	 * 
+	 * @param datum
+	 * @param feature
+	 * @return the vector computed for the datum by the feature (with 
+	 * indices relative to the feature)
+	 */
+	public SparseVector getFeatureVector(D datum, Feature<D, L> feature) {
+		FeatureVectorMemo memo = getFeatureVectorMemo(datum);
+		SparseVector vector = memo.vectors.get(feature);
+		if (vector != null)
+			return vector;
+		
+		SparseVectorBuilder vectorBuilder = new SparseVectorBuilder();
+		if (!feature.computeVector(datum, 0, vectorBuilder))
+			return null;
+		vector = vectorBuilder.toVector();
+		memo.vectors.put(feature, vector);
+		
+		return vector;
+	}
+	
+	private static FeatureVectorMemo getFeatureVectorMemo(Object datum) {
+		FeatureVectorMemo memo = FeaturizedDataSet.featureVectorMemos.get();
+		int graphVersion = FeaturizedDataSet.featureGraphVersion.get();
+		if (memo.datum != datum || memo.graphVersion != graphVersion) {
+			memo.datum = datum;
+			memo.graphVersion = graphVersion;
+			memo.vectors.clear();
+		}
+		return memo;
+	}
+	
+	/**
+	 * FeatureVectorMemo holds the vectors computed by features for the 
+	 * most recent datum on a thread (see getFeatureVector).  It is reset 
+	 * when a different datum is requested, or when features have been 
+	 * added to any data set since it was filled (in case the features 
+	 * were re-initialized).
+	 *
+	 */
+	private static class FeatureVectorMemo {
+		private Object datum;
+		private int graphVersion;
+		private IdentityHashMap<Feature<?, ?>, SparseVector> vectors = new IdentityHashMap<Feature<?, ?>, SparseVector>();
+	}
+	
+	/**
+	 * Limits the memory used by the cache of feature vectors to roughly
+	 * maxBytes bytes.  Vectors that are evicted from the cache to stay within 
+	 * the budget are written to a temporary spill file, and read back when 
+	 * they're requested again.  Vectors that were already cached are 
+	 * discarded.
+	 * 
+	 * @param maxBytes - budget of bytes, or a negative number for no budget
+	 * @return true if the budget has been set
+	 */
+	public boolean setMaxFeatureVectorCacheBytes(long maxBytes) {
+		thaw();
+		this.featureVocabularyValues.close();
+		this.featureVocabularyValues = new FeatureVectorCache(maxBytes, null);
+		return true;
+	}
+	
+	/**
+	 * Releases the resources held by the data set's cache of feature 
+	 * vectors (e.g. its spill file, see setMaxFeatureVectorCacheBytes).  This
+	 * should be called when the data set is discarded.  The data set can 
+	 * still be used afterward, but its vectors are recomputed on demand.
+	 * 
+	 * @return true if the cache has been closed
+	 */
+	public boolean close() {
+		this.featureMatrix = null;
+		return this.featureVocabularyValues.close();
+	}
+	
+	/**
+	 * Limits the memory used to count vocabulary candidates for features
+	 * (see countDatumKeys) to tables of roughly maxSize keys.  This is 
+	 * useful when features keep only keys that occur in several datums, 
+	 * but there are far more distinct keys than the features keep.
+	 * 
+	 * @param maxSize - maximum number of keys to hold in each table
+	 * while counting, or 0 to count all keys exactly
+	 * @return true if the size has been set
+	 */
+	public boolean setMaxVocabularyCounterSize(int maxSize) {
+		this.maxVocabularyCounterSize = Math.max(0, maxSize);
+		return true;
+	}
+	
+	public int getMaxVocabularyCounterSize() {
+		return this.maxVocabularyCounterSize;
+	}
+	
+	/**
+	 * @return the cache of feature vectors (useful for checking hit and miss
+	 * counts)
+	 */
+	public FeatureVectorCache getFeatureVectorCache() {
+		return this.featureVocabularyValues;
+	}
+	
+	/**
+	 * Sets a cache of feature vectors that persists across runs.  Vectors 
+	 * are looked up in the persistent cache before they're computed by the
+	 * features, and the vectors that are computed are added to the cache
+	 * (and saved to disk at the end of precomputeFeatures).  The same 
+	 * cache can be shared by several data sets.
+	 * 
+	 * @param persistentFeatureCache
+	 * @return true if the cache has been set
+	 */
+	public boolean setPersistentFeatureCache(PersistentFeatureCache persistentFeatureCache) {
+		thaw();
+		this.featureVocabularyValues.clear();
+		this.persistentFeatureCache = persistentFeatureCache;
+		return true;
+	}
+	
+	public PersistentFeatureCache getPersistentFeatureCache() {
+		return this.persistentFeatureCache;
+	}
+	
+	/**
+	 * Freezes the feature vectors of the data set into a compressed sparse 
+	 * row matrix (see ark.data.feature.FeatureMatrix) with rows in order
+	 * of datum id.  Vectors that haven't been computed yet are computed 
+	 * first using precomputeFeatures.  Afterward, vectors are served as 
+	 * views of the matrix rows, and the vector cache is emptied so that 
+	 * the matrix is the only copy.  Adding datums or features to the 
+	 * data set after it has been frozen thaws it.
+	 * 
+	 * If the vector cache has a budget of bytes, then the data set isn't
+	 * frozen (the matrix would hold every vector in memory), and the vectors
+	 * are only precomputed into the cache.
+	 * 
+	 * @return true if the data set has been frozen (or its vectors have been
+	 * precomputed if the cache has a budget)
+	 */
+	public boolean freeze() {
+		if (this.featureMatrix != null)
+			return true;
+		if (!precomputeFeatures())
+			return false;
+		if (this.featureVocabularyValues.isBounded())
+			return true;
+		
+		int[] rowDatumIds = new int[this.data.size()];
+		long[] rowDatumFingerprints = new long[this.data.size()];
+		int[] rowOffsets = new int[this.data.size() + 1];
+		int[] rowValueOffsets = new int[this.data.size() + 1];
+		List<SparseVector> rows = new ArrayList<SparseVector>(this.data.size());
+		int i = 0;
+		for (D datum : this.data.values()) {
+			SparseVector row = getFeatureVocabularyVector(datum);
+			if (row == null)
+				return false;
+			rowDatumIds[i] = datum.getId();
+			rowDatumFingerprints[i] = getDatumTools().getDatumFingerprint(datum);
+			rowOffsets[i + 1] = rowOffsets[i] + row.size();
+			rowValueOffsets[i + 1] = rowValueOffsets[i] + row.getValueCount();
+			rows.add(row);
+			i++;
+		}
+		
+		int[] columnIndices = new int[rowOffsets[rows.size()]];
+		double[] values = new double[rowValueOffsets[rows.size()]];
+		for (i = 0; i < rows.size(); i++) {
+			SparseVector row = rows.get(i);
+			for (int j = 0; j < row.size(); j++)
+				columnIndices[rowOffsets[i] + j] = row.getIndex(j);
+			for (int j = 0; j < row.getValueCount(); j++)
+				values[rowValueOffsets[i] + j] = row.getValue(j);
+		}
+		
+		this.featureMatrix = new FeatureMatrix(rowDatumIds, rowDatumFingerprints, rowOffsets, columnIndices, rowValueOffsets, values, this.featureVocabularySize, this);
+		this.featureVocabularyValues.clear();
+		
+		getDatumTools().getDataTools().getOutputWriter().debugWriteln("Froze feature vectors for " + this.name + " into " + this.featureMatrix.toString());
+		
+		return true;
+	}
+	
+	/**
+	 * Freezes the data set using the feature matrix in matrixFile if the
+	 * file exists and contains a matrix that matches the data set's 
+	 * features and datums.  The file is memory-mapped, so the matrix 
+	 * isn't deserialized, and it is shared with other processes that
+	 * have mapped the same file.  Otherwise, the data set is frozen
+	 * by computing its feature vectors, and the resulting matrix
+	 * is written to matrixFile to be mapped later.
+	 * 
+	 * @param matrixFile
+	 * @return true if the data set has been frozen
+	 */
+	public boolean freeze(File matrixFile) {
+		OutputWriter output = getDatumTools().getDataTools().getOutputWriter();
+		if (matrixFile.exists()) {
+			FeatureMatrix featureMatrix = FeatureMatrix.map(matrixFile);
+			if (featureMatrix != null && setFeatureMatrix(featureMatrix)) {
+				output.debugWriteln("Mapped feature vectors for " + this.name + " from " + matrixFile.getAbsolutePath());
+				return true;
 			}
+			
+			output.debugWriteln("Feature matrix in " + matrixFile.getAbsolutePath() + " doesn't match " + this.name + ".  Recomputing...");
 		}
 		
-		this.featureVocabularyValues.put(datum, values);
+		if (!freeze())
+			return false;
+		if (this.featureMatrix == null) // Not frozen because vector cache is bounded
+			return true;
 		
-		return values;
+		return this.featureMatrix.serialize(matrixFile);
+	}
+	
+	/**
+	 * Moves the rows of the frozen feature matrix back into the vector
+	 * cache (without copying them) so that more datums or features 
+	 * can be added.
+	 * 
+	 * @return true if the data set isn't frozen
+	 */
+	public boolean thaw() {
+		FeatureMatrix featureMatrix = this.featureMatrix;
+		if (featureMatrix == null)
+			return true;
+		
+		for (int i = 0; i < featureMatrix.getRowCount(); i++)
+			this.featureVocabularyValues.put(featureMatrix.getRowDatumId(i), featureMatrix.getRow(i));
+		this.featureMatrix = null;
+		
+		return true;
+	}
+	
+	/**
+	 * Freezes the data set using a previously computed feature matrix (for 
+	 * example, one that has been memory-mapped from a file using
+	 * FeatureMatrix.map) instead of computing the feature vectors.
+	 * 
+	 * @param featureMatrix
+	 * @return true if the data set has been frozen using the matrix.  This 
+	 * fails if the matrix's columns don't match the layout of the data set's
+	 * features, or if the matrix doesn't have a row for every datum (computed
+	 * from the datum's current content).
+	 */
+	public boolean setFeatureMatrix(FeatureMatrix featureMatrix) {
+		if (!featureMatrix.isCompatibleWith(this))
+			return false;
+		
+		this.featureMatrix = featureMatrix;
+		this.featureVocabularyValues.clear();
+		
+		return true;
+	}
+	
+	public boolean isFrozen() {
+		return this.featureMatrix != null;
+	}
+	
+	/**
+	 * @return the frozen feature matrix, or null if the data set hasn't
+	 * been frozen
+	 */
+	public FeatureMatrix getFeatureMatrix() {
+		return this.featureMatrix;
 	}
 	
+	/**
+	 * Computes the feature vectors for all datums in the data set, and
+	 * stores them in the cache so that they don't need to be computed on 
+	 * demand later (e.g. during the first training iteration of a model).  
+	 * The datums are split into blocks that are featurized by a work-stealing
+	 * pool of up to maxThreads threads.  This requires that the features' 
+	 * computeVector methods are safe to call from multiple threads at once.
+	 * 
+	 * @return true if the feature vectors have been computed
+	 */
 	public boolean precomputeFeatures() {
-		/* FIXME: Implement threaded. Also maybe implement serialization methods */
+		OutputWriter output = getDatumTools().getDataTools().getOutputWriter();
+		List<D> data = new ArrayList<D>(this.data.values());
+		int threads = Math.max(1, this.maxThreads);
+		
+		output.debugWriteln("Computing feature vectors for " + this.name + " (" + data.size() + " datums, " + threads + " threads)...");
+		
+		PrecomputeFeaturesTask task = new PrecomputeFeaturesTask(data, 0, data.size(), Math.max(1, data.size() / (threads * 16)), new PrecomputeFeaturesProgress(output, data.size()));
+		ForkJoinPool threadPool = new ForkJoinPool(threads);
+		try {
+			if (!threadPool.invoke(task)) {
+				output.debugWriteln("Error: Failed to compute feature vectors for " + this.name);
+				return false;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			threadPool.shutdown();
+		}
+		
+		output.debugWriteln("Finished computing feature vectors for " + this.name + " " + task.progress.toString());
+		
+		// Hit and miss counts are totals over all data sets that have used the clean functions
+		DataTools dataTools = getDatumTools().getDataTools();
+		for (String cleanFnName : dataTools.getCleanFnNames()) {
+			CachedStringTransform cleanFnCache = dataTools.getCleanFnCache(cleanFnName);
+			if (cleanFnCache == null || cleanFnCache.getHitCount() + cleanFnCache.getMissCount() == 0)
+				continue;
+			output.debugWriteln("Clean function " + cleanFnName + " cache hit rate after computing feature vectors for " + this.name + ": " + cleanFnCache.getHitRate() 
+					+ " (hits=" + cleanFnCache.getHitCount() + ", misses=" + cleanFnCache.getMissCount() + ")");
+		}
+		
+		if (this.persistentFeatureCache != null) {
+			if (!this.persistentFeatureCache.save())
+				return false;
+			output.debugWriteln("Saved feature vectors for " + this.name + " to " + this.persistentFeatureCache.toString());
+		}
+		
 		return true;
 	}
+	
+	/**
+	 * Computes and caches the vectors for a block of datums one feature at a
+	 * time (see Feature.computeVectors).  The results are the same as 
+	 * calling getFeatureVocabularyVector for each datum, which is done 
+	 * instead when the vectors come from a frozen matrix or a persistent 
+	 * cache, when some features are referenced by others (since the 
+	 * referenced vectors are only remembered for the most recent datum, 
+	 * see getFeatureVector), or when a feature fails to compute a block.
+	 * 
+	 * @param data
+	 * @param blocks - buffers reused for each feature's vectors (extended 
+	 * as needed)
+	 * @return true if the vectors have been computed
+	 */
+	private boolean computeFeatureVocabularyVectors(List<D> data, List<SparseVectorBlock> blocks) {
+		if (this.featureMatrix != null || this.persistentFeatureCache != null || !this.dependencyFeatures.isEmpty())
+			return computeFeatureVocabularyVectorsByDatum(data);
+		
+		List<D> uncomputedData = new ArrayList<D>(data.size());
+		for (D datum : data)
+			if (this.data.containsKey(datum.getId()) && !this.featureVocabularyValues.contains(datum.getId()))
+				uncomputedData.add(datum);
+		if (uncomputedData.size() == 0)
+			return true;
+		
+		int featureCount = 0;
+		for (Entry<Integer, Feature<D, L>> entry : this.features.entrySet()) {
+			if (blocks.size() == featureCount)
+				blocks.add(new SparseVectorBlock(uncomputedData.size()));
+			SparseVectorBlock block = blocks.get(featureCount);
+			block.reset(uncomputedData.size());
+			if (!entry.getValue().computeVectors(uncomputedData, entry.getKey(), block))
+				return computeFeatureVocabularyVectorsByDatum(uncomputedData);
+			featureCount++;
+		}
+		
+		SparseVectorBuilder vectorBuilder = this.vectorBuilders.get();
+		for (int i = 0; i < uncomputedData.size(); i++) {
+			vectorBuilder.clear();
+			for (int j = 0; j < featureCount; j++) {
+				SparseVectorBlock block = blocks.get(j);
+				for (int k = block.getRowStart(i); k < block.getRowEnd(i); k++)
+					vectorBuilder.add(block.getIndex(k), block.getValue(k));
+			}
+			this.featureVocabularyValues.put(uncomputedData.get(i).getId(), vectorBuilder.toVector());
+		}
+		
+		return true;
+	}
+	
+	private boolean computeFeatureVocabularyVectorsByDatum(List<D> data) {
+		for (D datum : data)
+			if (getFeatureVocabularyVector(datum) == null)
+				return false;
+		return true;
+	}
+	
+	/**
+	 * DatumKeyExtractor gives the keys (e.g. n-grams or dependency paths)
+	 * that a feature extracts from a datum to build its vocabulary (see
+	 * countDatumKeys).
+	 *
+	 * @param <D> datum type
+	 * @param <K> key type
+	 */
+	public interface DatumKeyExtractor<D, K> {
+		Iterable<K> extractKeys(D datum);
+	}
+	
+	/**
+	 * DatumPackedKeyExtractor is a DatumKeyExtractor that gives most of 
+	 * its keys packed into longs (e.g. n-grams of interned token ids; see
+	 * ark.data.feature.TokenDictionary), so that they can be counted 
+	 * without building an object for each key (see 
+	 * CounterTable.incrementPackedCount).  The keys that can't be packed 
+	 * are given by extractKeys.  For each datum, extractPackedKeys is 
+	 * called right before extractKeys on the same thread.
+	 *
+	 * @param <D> datum type
+	 * @param <K> key type
+	 */
+	public interface DatumPackedKeyExtractor<D, K> extends DatumKeyExtractor<D, K> {
+		/**
+		 * @param datum
+		 * @return a table whose keys are the packed keys extracted from the 
+		 * datum (its values are ignored)
+		 */
+		LongIntHashMap extractPackedKeys(D datum);
+	}
+	
+	/**
+	 * Counts the number of datums from which each key is extracted by
+	 * the given extractor.  This is used by features to count candidates 
+	 * for their vocabularies in their init methods.  The datums are split 
+	 * into blocks that are counted into separate tables by a work-stealing 
+	 * pool of up to maxThreads threads, and the tables are merged at the end.
+	 * The extractor must be safe to call from multiple threads at once.
+	 * 
+	 * The iteration order of the returned table depends on the number of 
+	 * threads, so features should number their vocabularies using 
+	 * CounterTable.buildSortedIndex to keep them deterministic.
+	 * 
+	 * @param keyExtractor
+	 * @return a table of counts, or null if the counting failed
+	 */
+	public <K> CounterTable<K> countDatumKeys(DatumKeyExtractor<D, K> keyExtractor) {
+		return countDatumKeys(keyExtractor, 1);
+	}
+	
+	/**
+	 * Counts keys like countDatumKeys above, but only returns the keys 
+	 * that are extracted from at least minCount datums.  If the data set
+	 * has a maximum vocabulary counter size (see 
+	 * setMaxVocabularyCounterSize), then the keys that might occur in at 
+	 * least minCount datums are first found using bounded approximate 
+	 * counters (see ark.util.BoundedCounterTable), and only those 
+	 * candidates are counted exactly in a second scan.  The counters are 
+	 * grown and the first scan is repeated until the approximation
+	 * guarantees that no key above the threshold was dropped, so the 
+	 * result is the same as with exact counting.
+	 * 
+	 * @param keyExtractor
+	 * @param minCount
+	 * @return a table of counts, or null if the counting failed
+	 */
+	public <K> CounterTable<K> countDatumKeys(DatumKeyExtractor<D, K> keyExtractor, int minCount) {
+		List<DatumKeyExtractor<D, K>> keyExtractors = new ArrayList<DatumKeyExtractor<D, K>>(1);
+		keyExtractors.add(keyExtractor);
+		List<CounterTable<K>> counters = countDatumKeys(keyExtractors, new int[] { minCount });
+		return (counters == null) ? null : counters.get(0);
+	}
+	
+	/**
+	 * Counts keys for several extractors in a single scan over the data 
+	 * (see countDatumKeys above).  Each datum is passed to all of the 
+	 * extractors in order before moving on to the next datum.
+	 * 
+	 * @param keyExtractors
+	 * @return a table of counts for each extractor, or null if the counting
+	 * failed
+	 */
+	public <K> List<CounterTable<K>> countDatumKeys(List<DatumKeyExtractor<D, K>> keyExtractors) {
+		return countDatumKeys(keyExtractors, null);
+	}
+	
+	/**
+	 * Counts keys for several extractors in a single scan over the data,
+	 * keeping only the keys for the j-th extractor that are extracted from
+	 * at least minCounts[j] datums (see countDatumKeys above).
+	 * 
+	 * @param keyExtractors
+	 * @param minCounts - minimum counts for the extractors (or null to keep
+	 * all keys)
+	 * @return a table of counts for each extractor, or null if the counting
+	 * failed
+	 */
+	public <K> List<CounterTable<K>> countDatumKeys(List<DatumKeyExtractor<D, K>> keyExtractors, int[] minCounts) {
+		List<Set<K>> candidates = new ArrayList<Set<K>>(keyExtractors.size());
+		List<LongIntHashMap> packedCandidates = new ArrayList<LongIntHashMap>(keyExtractors.size());
+		List<Integer> boundedExtractorIndices = new ArrayList<Integer>();
+		for (int j = 0; j < keyExtractors.size(); j++) {
+			candidates.add(null);
+			packedCandidates.add(null);
+			if (this.maxVocabularyCounterSize > 0 && minCounts != null && minCounts[j] > 1)
+				boundedExtractorIndices.add(j);
+		}
+		
+		int capacity = this.maxVocabularyCounterSize;
+		while (boundedExtractorIndices.size() > 0) {
+			List<DatumKeyExtractor<D, K>> boundedExtractors = new ArrayList<DatumKeyExtractor<D, K>>(boundedExtractorIndices.size());
+			for (Integer j : boundedExtractorIndices)
+				boundedExtractors.add(keyExtractors.get(j));
+			
+			List<CounterTable<K>> boundedCounters = countDatumKeys(boundedExtractors, capacity, null, null);
+			if (boundedCounters == null)
+				return null;
+			
+			List<Integer> failedExtractorIndices = new ArrayList<Integer>();
+			for (int i = 0; i < boundedExtractorIndices.size(); i++) {
+				int j = boundedExtractorIndices.get(i);
+				BoundedCounterTable<K> boundedCounter = (BoundedCounterTable<K>)boundedCounters.get(i);
+				if (boundedCounter.getMaxError() < minCounts[j]) {
+					candidates.set(j, boundedCounter.getCandidates(minCounts[j]));
+					packedCandidates.set(j, boundedCounter.getPackedCandidates(minCounts[j]));
+				} else
+					failedExtractorIndices.add(j);
+			}
+			
+			boundedExtractorIndices = failedExtractorIndices;
+			if (boundedExtractorIndices.size() > 0) {
+				capacity *= 2;
+				getDatumTools().getDataTools().getOutputWriter().debugWriteln("Vocabulary counters for " + boundedExtractorIndices.size() + " extractors on " + this.name + " were too small; retrying with capacity " + capacity + "...");
+			}
+		}
+		
+		List<CounterTable<K>> counters = countDatumKeys(keyExtractors, 0, candidates, packedCandidates);
+		if (counters == null || minCounts == null)
+			return counters;
+		
+		for (int j = 0; j < counters.size(); j++)
+			if (minCounts[j] > 1)
+				counters.get(j).removeCountsLessThan(minCounts[j]);
+		
+		return counters;
+	}
+	
+	private <K> List<CounterTable<K>> countDatumKeys(List<DatumKeyExtractor<D, K>> keyExtractors, int capacity, List<Set<K>> candidates, List<LongIntHashMap> packedCandidates) {
+		List<D> data = new ArrayList<D>(this.data.values());
+		int threads = Math.max(1, this.maxThreads);
+		if (threads == 1 || data.size() <= 1)
+			return new CountDatumKeysTask<K>(data, 0, data.size(), data.size(), keyExtractors, capacity, candidates, packedCandidates).compute();
+		
+		CountDatumKeysTask<K> task = new CountDatumKeysTask<K>(data, 0, data.size(), Math.max(1, data.size() / (threads * 4)), keyExtractors, capacity, candidates, packedCandidates);
+		ForkJoinPool threadPool = new ForkJoinPool(threads);
+		try {
+			return threadPool.invoke(task);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			threadPool.shutdown();
+		}
+	}
+	
+	/**
+	 * CountDatumKeysTask counts keys for a range of the data into its own
+	 * tables, splitting the range in half until it's no larger than the
+	 * block size, and merging the tables of the halves.  The tables are
+	 * bounded (see ark.util.BoundedCounterTable) if a capacity is given, 
+	 * and only the candidate keys are counted for extractors that have
+	 * candidates.  Packed keys given by DatumPackedKeyExtractors are 
+	 * counted as packed keys (see CounterTable.incrementPackedCount).
+	 *
+	 */
+	private class CountDatumKeysTask<K> extends RecursiveTask<List<CounterTable<K>>> {
+		private static final long serialVersionUID = 1L;
+		
+		private List<D> data;
+		private int start;
+		private int end;
+		private int blockSize;
+		private List<DatumKeyExtractor<D, K>> keyExtractors;
+		private int capacity; // 0 for unbounded tables
+		private List<Set<K>> candidates; // candidate keys for each extractor (null to count all keys)
+		private List<LongIntHashMap> packedCandidates; // candidate packed keys for each extractor (null to count all keys)
+		
+		public CountDatumKeysTask(List<D> data, int start, int end, int blockSize, List<DatumKeyExtractor<D, K>> keyExtractors, int capacity, List<Set<K>> candidates, List<LongIntHashMap> packedCandidates) {
+			this.data = data;
+			this.start = start;
+			this.end = end;
+			this.blockSize = blockSize;
+			this.keyExtractors = keyExtractors;
+			this.capacity = capacity;
+			this.candidates = candidates;
+			this.packedCandidates = packedCandidates;
+		}
+		
+		@Override
+		protected List<CounterTable<K>> compute() {
+			if (this.end - this.start <= this.blockSize) {
+				List<CounterTable<K>> counters = new ArrayList<CounterTable<K>>(this.keyExtractors.size());
+				for (int j = 0; j < this.keyExtractors.size(); j++)
+					counters.add((this.capacity > 0) ? new BoundedCounterTable<K>(this.capacity) : new CounterTable<K>());
+				
+				for (int i = this.start; i < this.end; i++) {
+					D datum = this.data.get(i);
+					for (int j = 0; j < this.keyExtractors.size(); j++) {
+						CounterTable<K> counter = counters.get(j);
+						DatumKeyExtractor<D, K> keyExtractor = this.keyExtractors.get(j);
+						if (keyExtractor instanceof DatumPackedKeyExtractor) {
+							LongIntHashMap packedKeyCandidates = (this.packedCandidates == null) ? null : this.packedCandidates.get(j);
+							LongIntHashMap packedKeys = ((DatumPackedKeyExtractor<D, K>)keyExtractor).extractPackedKeys(datum);
+							for (int k = 0; k < packedKeys.getSlotCount(); k++) {
+								if (!packedKeys.isSlotUsed(k))
+									continue;
+								long packedKey = packedKeys.getSlotKey(k);
+								if (packedKeyCandidates == null || packedKeyCandidates.containsKey(packedKey))
+									counter.incrementPackedCount(packedKey);
+							}
+						}
+						
+						Set<K> keyCandidates = (this.candidates == null) ? null : this.candidates.get(j);
+						for (K key : keyExtractor.extractKeys(datum))
+							if (keyCandidates == null || keyCandidates.contains(key))
+								counter.incrementCount(key);
+					}
+				}
+				return counters;
+			} else {
+				int middle = this.start + (this.end - this.start) / 2;
+				CountDatumKeysTask<K> left = new CountDatumKeysTask<K>(this.data, this.start, middle, this.blockSize, this.keyExtractors, this.capacity, this.candidates, this.packedCandidates);
+				CountDatumKeysTask<K> right = new CountDatumKeysTask<K>(this.data, middle, this.end, this.blockSize, this.keyExtractors, this.capacity, this.candidates, this.packedCandidates);
+				right.fork();
+				List<CounterTable<K>> counters = left.compute();
+				List<CounterTable<K>> rightCounters = right.join();
+				for (int j = 0; j < counters.size(); j++) {
+					CounterTable<K> counter = counters.get(j);
+					CounterTable<K> rightCounter = rightCounters.get(j);
+					if (counter.getSize() < rightCounter.getSize()) {
+						rightCounter.addCounts(counter);
+						counters.set(j, rightCounter);
+					} else {
+						counter.addCounts(rightCounter);
+					}
+				}
+				return counters;
+			}
+		}
+	}
+	
+	/**
+	 * PrecomputeFeaturesProgress keeps track of the number of datums that
+	 * have been featurized by precomputeFeatures, and periodically outputs 
+	 * the progress and throughput.
+	 *
+	 */
+	private class PrecomputeFeaturesProgress {
+		private OutputWriter output;
+		private int total;
+		private int outputInterval;
+		private long startTime;
+		private AtomicInteger completed;
+		
+		public PrecomputeFeaturesProgress(OutputWriter output, int total) {
+			this.output = output;
+			this.total = total;
+			this.outputInterval = Math.max(1, total / 10);
+			this.startTime = System.currentTimeMillis();
+			this.completed = new AtomicInteger();
+		}
+		
+		public void increment() {
+			int completed = this.completed.incrementAndGet();
+			if (completed % this.outputInterval == 0 && completed < this.total)
+				this.output.debugWriteln("Computed feature vectors for " + name + " " + toString());
+		}
+		
+		public String toString() {
+			int completed = this.completed.get();
+			double seconds = Math.max(1, System.currentTimeMillis() - this.startTime) / 1000.0;
+			return "(" + completed + "/" + this.total + " datums, " + seconds + "s, " + (int)(completed / seconds) + " datums/s)";
+		}
+	}
+	
+	/**
+	 * PrecomputeFeaturesTask computes feature vectors for a range of the 
+	 * data, splitting the range in half until it's no larger than the
+	 * block size so that idle threads can steal work.
+	 *
+	 */
+	private class PrecomputeFeaturesTask extends RecursiveTask<Boolean> {
+		private static final long serialVersionUID = 1L;
+		
+		private List<D> data;
+		private int start;
+		private int end;
+		private int blockSize;
+		private PrecomputeFeaturesProgress progress;
+		
+		public PrecomputeFeaturesTask(List<D> data, int start, int end, int blockSize, PrecomputeFeaturesProgress progress) {
+			this.data = data;
+			this.start = start;
+			this.end = end;
+			this.blockSize = blockSize;
+			this.progress = progress;
+		}
+		
+		@Override
+		protected Boolean compute() {
+			if (this.end - this.start <= this.blockSize) {
+				List<SparseVectorBlock> blocks = new ArrayList<SparseVectorBlock>();
+				for (int i = this.start; i < this.end; i += FEATURE_BATCH_SIZE) {
+					int batchEnd = Math.min(this.end, i + FEATURE_BATCH_SIZE);
+					if (!computeFeatureVocabularyVectors(this.data.subList(i, batchEnd), blocks))
+						return false;
+					for (int j = i; j < batchEnd; j++)
+						this.progress.increment();
+				}
+				return true;
+			} else {
+				int middle = this.start + (this.end - this.start) / 2;
+				PrecomputeFeaturesTask firstTask = new PrecomputeFeaturesTask(this.data, this.start, middle, this.blockSize, this.progress);
+				PrecomputeFeaturesTask secondTask = new PrecomputeFeaturesTask(this.data, middle, this.end, this.blockSize, this.progress);
+				invokeAll(firstTask, secondTask);
+				return firstTask.join() && secondTask.join();
+			}
+		}
+	}
 }
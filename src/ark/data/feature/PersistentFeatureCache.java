@@ -0,0 +1,377 @@
+/**
+ * Copyright 2014 Bill McDowell 
+ *
+ * This file is part of theMess (https://github.com/forkunited/theMess)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy 
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package ark.data.feature;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ark.util.SparseVector;
+
+/**
+ * PersistentFeatureCache stores the vectors computed by features for
+ * datums in files on disk so that they can be reused across experiment 
+ * runs (for example, when an experiment is re-run with only the model's
+ * hyper-parameters changed).
+ * 
+ * The cache is content-addressed.  The vectors for a feature are stored 
+ * in a file named by a hash of the feature's parameters and vocabulary 
+ * (Feature.getIdentityString), so changing either of these automatically 
+ * leads to a different file.  Each vector in the file is keyed by a 
+ * datum id and a fingerprint of the datum's content 
+ * (Datum.Tools.getDatumFingerprint), and a vector is only used if the 
+ * fingerprint still matches, so vectors are recomputed when the
+ * underlying documents change.
+ * 
+ * The first time a feature is used, its file is scanned to build an index
+ * from datum ids to the fingerprints and file offsets of their vectors, 
+ * and vectors are read from the file only when they're requested, so 
+ * the cache doesn't hold a copy of the stored vectors in memory.  Newly 
+ * computed vectors are held in memory until save is called, which 
+ * appends them to the files.  Files should be closed by close when the 
+ * cache is no longer needed.
+ * 
+ * @author Bill McDowell
+ *
+ */
+public class PersistentFeatureCache {
+	private static final int RECORD_HEADER_BYTES = 16; // int datumId, long fingerprint, int size
+	private static final int ENTRY_BYTES = 12; // int index, double value
+	
+	private static class IndexEntry {
+		private final long fingerprint;
+		private final long offset; // Position of the vector's record in the file
+		
+		public IndexEntry(long fingerprint, long offset) {
+			this.fingerprint = fingerprint;
+			this.offset = offset;
+		}
+	}
+	
+	private static class CachedVector {
+		private final long fingerprint;
+		private final SparseVector vector;
+		
+		public CachedVector(long fingerprint, SparseVector vector) {
+			this.fingerprint = fingerprint;
+			this.vector = vector;
+		}
+	}
+	
+	private static class FeatureVectors {
+		private File file;
+		private FileChannel channel;
+		private Map<Integer, IndexEntry> index; // Map from datum ids to vectors saved in the file
+		private ConcurrentMap<Integer, CachedVector> unsavedVectors;
+		
+		public FeatureVectors(File file) {
+			this.file = file;
+			this.index = new ConcurrentHashMap<Integer, IndexEntry>();
+			this.unsavedVectors = new ConcurrentHashMap<Integer, CachedVector>();
+		}
+	}
+	
+	private File directory;
+	private Map<String, FeatureVectors> featureVectors; // Map from feature hashes to vectors for features
+	// Map from feature instances to their vectors, so that features are only 
+	// hashed once.  The keys are weak so that features (e.g. the clones made
+	// for each fold of cross validation) can be collected once they're no 
+	// longer used.  Features don't override equals, so the keys are compared
+	// by identity.
+	private Map<Feature<?, ?>, FeatureVectors> featureInstanceVectors;
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong invalidations; // Number of vectors found with fingerprints that don't match their datums
+	
+	public PersistentFeatureCache(File directory) {
+		this.directory = directory;
+		this.featureVectors = new ConcurrentHashMap<String, FeatureVectors>();
+		this.featureInstanceVectors = Collections.synchronizedMap(new WeakHashMap<Feature<?, ?>, FeatureVectors>());
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.invalidations = new AtomicLong();
+	}
+	
+	/**
+	 * @param feature
+	 * @param datumId
+	 * @param datumFingerprint
+	 * @return the cached vector computed by the feature for the datum, or null 
+	 * if there is no cached vector or if the cached vector was computed from
+	 * datum content with a different fingerprint
+	 */
+	public SparseVector get(Feature<?, ?> feature, int datumId, long datumFingerprint) {
+		FeatureVectors featureVectors = getFeatureVectors(feature);
+		if (featureVectors == null)
+			return null;
+		
+		CachedVector unsavedVector = featureVectors.unsavedVectors.get(datumId);
+		if (unsavedVector != null && unsavedVector.fingerprint == datumFingerprint) {
+			this.hits.incrementAndGet();
+			return unsavedVector.vector;
+		}
+		
+		IndexEntry indexEntry = featureVectors.index.get(datumId);
+		if (indexEntry == null) {
+			this.misses.incrementAndGet();
+			return null;
+		} else if (indexEntry.fingerprint != datumFingerprint) {
+			this.invalidations.incrementAndGet();
+			this.misses.incrementAndGet();
+			return null;
+		}
+		
+		SparseVector vector = readVector(featureVectors, indexEntry.offset);
+		if (vector == null) {
+			this.misses.incrementAndGet();
+			return null;
+		}
+		
+		this.hits.incrementAndGet();
+		return vector;
+	}
+	
+	public boolean put(Feature<?, ?> feature, int datumId, long datumFingerprint, SparseVector vector) {
+		FeatureVectors featureVectors = getFeatureVectors(feature);
+		if (featureVectors == null)
+			return false;
+		
+		featureVectors.unsavedVectors.put(datumId, new CachedVector(datumFingerprint, vector));
+		
+		return true;
+	}
+	
+	/**
+	 * Appends vectors that have been computed since the last save to 
+	 * the files for their features.  Vectors can be put into the cache by
+	 * other threads while it's saved, so each vector is removed from the
+	 * unsaved vectors individually once it's written (unless it has been 
+	 * replaced in the meantime), and vectors put during the save are left 
+	 * for the next save.
+	 * 
+	 * @return true if the vectors have been saved
+	 */
+	public synchronized boolean save() {
+		for (FeatureVectors featureVectors : this.featureVectors.values()) {
+			if (featureVectors.unsavedVectors.isEmpty())
+				continue;
+			
+			try {
+				long position = featureVectors.channel.size();
+				for (Entry<Integer, CachedVector> entry : featureVectors.unsavedVectors.entrySet()) {
+					SparseVector vector = entry.getValue().vector;
+					ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + ENTRY_BYTES*vector.size());
+					buffer.putInt(entry.getKey());
+					buffer.putLong(entry.getValue().fingerprint);
+					buffer.putInt(vector.size());
+					for (int i = 0; i < vector.size(); i++) {
+						buffer.putInt(vector.getIndex(i));
+						buffer.putDouble(vector.getValue(i));
+					}
+					buffer.flip();
+					
+					long offset = position;
+					while (buffer.hasRemaining())
+						position += featureVectors.channel.write(buffer, position);
+					
+					// Later vectors replace earlier ones for the same datum
+					featureVectors.index.put(entry.getKey(), new IndexEntry(entry.getValue().fingerprint, offset));
+					featureVectors.unsavedVectors.remove(entry.getKey(), entry.getValue());
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Closes the files of the cache (without saving unsaved vectors).  The
+	 * cache can still be used afterward, in which case the files are 
+	 * indexed again.
+	 * 
+	 * @return true if the files have been closed
+	 */
+	public synchronized boolean close() {
+		boolean closed = true;
+		for (FeatureVectors featureVectors : this.featureVectors.values()) {
+			try {
+				featureVectors.channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+				closed = false;
+			}
+		}
+		
+		this.featureVectors.clear();
+		this.featureInstanceVectors.clear();
+		
+		return closed;
+	}
+	
+	public long getHitCount() {
+		return this.hits.get();
+	}
+	
+	public long getMissCount() {
+		return this.misses.get();
+	}
+	
+	public long getInvalidationCount() {
+		return this.invalidations.get();
+	}
+	
+	public String toString() {
+		return "PersistentFeatureCache(directory=" + this.directory.getAbsolutePath() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", invalidations=" + getInvalidationCount() + ")";
+	}
+	
+	private FeatureVectors getFeatureVectors(Feature<?, ?> feature) {
+		FeatureVectors featureVectors = this.featureInstanceVectors.get(feature);
+		if (featureVectors != null)
+			return featureVectors;
+		
+		return loadFeatureVectors(feature);
+	}
+	
+	private synchronized FeatureVectors loadFeatureVectors(Feature<?, ?> feature) {
+		FeatureVectors featureVectors = this.featureInstanceVectors.get(feature);
+		if (featureVectors != null)
+			return featureVectors;
+		
+		String featureHash = hashFeature(feature);
+		if (featureHash == null)
+			return null;
+		
+		featureVectors = this.featureVectors.get(featureHash);
+		if (featureVectors == null) {
+			featureVectors = new FeatureVectors(new File(this.directory, featureHash + ".vectors"));
+			if (!indexFeatureVectors(featureVectors))
+				return null;
+			this.featureVectors.put(featureHash, featureVectors);
+		}
+		
+		this.featureInstanceVectors.put(feature, featureVectors);
+		
+		return featureVectors;
+	}
+	
+	/**
+	 * Opens the file for the feature vectors, and indexes the records in 
+	 * it.  A partially written record at the end of the file (e.g. from a 
+	 * run that was interrupted while saving) is truncated so that later
+	 * records are appended at the right position.
+	 */
+	@SuppressWarnings("resource")
+	private boolean indexFeatureVectors(FeatureVectors featureVectors) {
+		if (!this.directory.exists() && !this.directory.mkdirs())
+			return false;
+		
+		try {
+			featureVectors.channel = new RandomAccessFile(featureVectors.file, "rw").getChannel();
+			long size = featureVectors.channel.size();
+			long position = 0;
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+			while (position + RECORD_HEADER_BYTES <= size) {
+				header.clear();
+				readFully(featureVectors.channel, header, position);
+				int datumId = header.getInt();
+				long fingerprint = header.getLong();
+				int vectorSize = header.getInt();
+				long recordEnd = position + RECORD_HEADER_BYTES + ((long)ENTRY_BYTES)*vectorSize;
+				if (vectorSize < 0 || recordEnd > size)
+					break;
+				
+				// Later vectors replace earlier ones for the same datum
+				featureVectors.index.put(datumId, new IndexEntry(fingerprint, position));
+				position = recordEnd;
+			}
+			
+			if (position < size)
+				featureVectors.channel.truncate(position);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		
+		return true;
+	}
+	
+	private SparseVector readVector(FeatureVectors featureVectors, long offset) {
+		try {
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+			readFully(featureVectors.channel, header, offset);
+			header.position(RECORD_HEADER_BYTES - 4);
+			int size = header.getInt();
+			
+			ByteBuffer buffer = ByteBuffer.allocate(ENTRY_BYTES*size);
+			readFully(featureVectors.channel, buffer, offset + RECORD_HEADER_BYTES);
+			int[] indices = new int[size];
+			double[] values = new double[size];
+			for (int i = 0; i < size; i++) {
+				indices[i] = buffer.getInt();
+				values[i] = buffer.getDouble();
+			}
+			
+			return new SparseVector(indices, values);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0)
+				throw new IOException("Unexpected end of feature vector file");
+			position += read;
+		}
+		buffer.flip();
+	}
+	
+	private String hashFeature(Feature<?, ?> feature) {
+		String featureStr = feature.getIdentityString();
+		if (featureStr == null)
+			return null;
+		
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(featureStr.getBytes("UTF-8"));
+			StringBuilder hashStr = new StringBuilder();
+			for (int i = 0; i < hash.length; i++)
+				hashStr.append(String.format("%02x", hash[i]));
+			return feature.getGenericName() + "_" + hashStr.toString();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2014 Bill McDowell 
+ *
+ * This file is part of theMess (https://github.com/forkunited/theMess)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy 
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package ark.data.feature;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ark.data.DataTools;
+import ark.data.annotation.Document;
+import ark.util.GenerationalCache;
+import ark.wrapper.BrownClusterer;
+
+/**
+ * SentenceNGramCache memoizes the cleaned n-grams of document sentences
+ * for n-gram features (see ark.data.feature.FeatureNGram).  In data sets 
+ * with many datums per sentence (e.g. relations or temporal orderings 
+ * between the mentions in a sentence), features like 
+ * ark.data.feature.FeatureNGramSentence would otherwise re-tokenize and 
+ * re-clean the same sentence for every datum.  
+ * 
+ * There is one cache for each combination of n, clean function, and 
+ * clusterer (see getInstance), shared by all features and data sets with
+ * those parameters.  Clean functions and clusterers are identified by 
+ * instance rather than by name, since differently configured functions 
+ * can share a name (e.g. stop word functions built from different 
+ * gazetteers).  Each cache maps (document name, sentence index) 
+ * pairs to arrays of n-grams indexed by the sentence token at which they
+ * start, so that features using part of a sentence (e.g. a context 
+ * window) can slice the array.  Features that pack their n-grams into 
+ * keys (see ark.data.feature.TokenDictionary) use separate caches of 
+ * keys for each dictionary (see getPackedInstance).
+ * 
+ * Like ark.data.CachedStringTransform, each cache holds its sentences in
+ * an ark.util.GenerationalCache, so that it never holds more than its 
+ * maximum number of sentences, and sentences that are still in use 
+ * survive.  Caches are safe to use from multiple threads.
+ * 
+ * @author Bill McDowell
+ *
+ * @param <V> type of the n-grams of a sentence
+ */
+public class SentenceNGramCache<V> {
+	public static final int DEFAULT_MAX_SIZE = 20000;
+	
+	private static Map<InstanceKey, SentenceNGramCache<?>> instances = new HashMap<InstanceKey, SentenceNGramCache<?>>();
+	private static int defaultMaxSize = DEFAULT_MAX_SIZE;
+	
+	private final String name;
+	private final GenerationalCache<SentenceKey, V> cache;
+	
+	/**
+	 * InstanceKey identifies a cache by n and the instances of the objects
+	 * that compute its n-grams
+	 */
+	private static class InstanceKey {
+		private final int n;
+		private final Object first;
+		private final Object second;
+		
+		public InstanceKey(int n, Object first, Object second) {
+			this.n = n;
+			this.first = first;
+			this.second = second;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof InstanceKey))
+				return false;
+			InstanceKey key = (InstanceKey)o;
+			return this.n == key.n && this.first == key.first && this.second == key.second;
+		}
+		
+		@Override
+		public int hashCode() {
+			return (this.n*31 + System.identityHashCode(this.first))*31 + System.identityHashCode(this.second);
+		}
+	}
+	
+	private static class SentenceKey {
+		private final String documentName;
+		private final int sentenceIndex;
+		
+		public SentenceKey(String documentName, int sentenceIndex) {
+			this.documentName = documentName;
+			this.sentenceIndex = sentenceIndex;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof SentenceKey))
+				return false;
+			SentenceKey key = (SentenceKey)o;
+			return this.sentenceIndex == key.sentenceIndex && this.documentName.equals(key.documentName);
+		}
+		
+		@Override
+		public int hashCode() {
+			return this.documentName.hashCode()*31 + this.sentenceIndex;
+		}
+	}
+	
+	private SentenceNGramCache(String name, int maxSize) {
+		this.name = name;
+		this.cache = new GenerationalCache<SentenceKey, V>(maxSize);
+	}
+	
+	/**
+	 * @param n
+	 * @param cleanFn
+	 * @param clusterer (or null)
+	 * @return the cache for n-grams of size n computed with the clean 
+	 * function and clusterer, which is created (with the default maximum 
+	 * size) if it doesn't exist yet.  Clean functions and clusterers are
+	 * identified by instance.
+	 */
+	public static synchronized SentenceNGramCache<String[][]> getInstance(int n, DataTools.StringTransform cleanFn, BrownClusterer clusterer) {
+		String name = n + "\t" + cleanFn.toString() + "\t" + ((clusterer == null) ? "" : clusterer.getName());
+		return getInstance(new InstanceKey(n, cleanFn, clusterer), name);
+	}
+	
+	/**
+	 * @param n
+	 * @param tokenDictionary
+	 * @return the cache for keys of n-grams of size n packed by the token 
+	 * dictionary (see FeatureNGram.getSentenceNGramKeys), which is created
+	 * if it doesn't exist yet.  Since the keys refer to the ids in the 
+	 * dictionary, there is one cache for each dictionary instance.
+	 */
+	public static synchronized SentenceNGramCache<FeatureNGram.SentenceNGramKeys> getPackedInstance(int n, TokenDictionary tokenDictionary) {
+		String name = "Packed\t" + n + "\t" + tokenDictionary.toString();
+		return getInstance(new InstanceKey(n, tokenDictionary, null), name);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <V> SentenceNGramCache<V> getInstance(InstanceKey key, String name) {
+		SentenceNGramCache<V> cache = (SentenceNGramCache<V>)instances.get(key);
+		if (cache == null) {
+			cache = new SentenceNGramCache<V>(name, defaultMaxSize);
+			instances.put(key, cache);
+		}
+		return cache;
+	}
+	
+	/**
+	 * Sets the maximum number of sentences held by each existing cache and 
+	 * by caches created later
+	 * 
+	 * @param maxSize - maximum number of sentences, or 0 to disable caching
+	 * @return true if the size has been set
+	 */
+	public static synchronized boolean setDefaultMaxSize(int maxSize) {
+		defaultMaxSize = Math.max(0, maxSize);
+		for (SentenceNGramCache<?> cache : instances.values())
+			cache.setMaxSize(defaultMaxSize);
+		return true;
+	}
+	
+	/**
+	 * Removes all caches (e.g. to free memory between corpora)
+	 * 
+	 * @return true if the caches have been removed
+	 */
+	public static synchronized boolean clearInstances() {
+		instances.clear();
+		return true;
+	}
+	
+	/**
+	 * @param document
+	 * @param sentenceIndex
+	 * @return the n-grams for the sentence (see put), or null if they 
+	 * aren't cached
+	 */
+	public V get(Document document, int sentenceIndex) {
+		if (this.cache.getMaxSize() == 0)
+			return null;
+		return this.cache.get(new SentenceKey(document.getName(), sentenceIndex));
+	}
+	
+	/**
+	 * @param document
+	 * @param sentenceIndex
+	 * @param ngrams - n-grams of the sentence (e.g. an array whose i-th 
+	 * element contains the n-grams starting at the i-th token of the 
+	 * sentence).  They're shared, so they shouldn't be modified after 
+	 * they're cached.
+	 * @return true if the n-grams have been cached
+	 */
+	public boolean put(Document document, int sentenceIndex, V ngrams) {
+		if (this.cache.getMaxSize() == 0)
+			return false;
+		return this.cache.put(new SentenceKey(document.getName(), sentenceIndex), ngrams);
+	}
+	
+	public String getName() {
+		return this.name;
+	}
+	
+	public int getMaxSize() {
+		return this.cache.getMaxSize();
+	}
+	
+	public boolean setMaxSize(int maxSize) {
+		return this.cache.setMaxSize(maxSize);
+	}
+	
+	public long getHitCount() {
+		return this.cache.getHitCount();
+	}
+	
+	public long getMissCount() {
+		return this.cache.getMissCount();
+	}
+	
+	public double getHitRate() {
+		return this.cache.getHitRate();
+	}
+	
+	public boolean clear() {
+		return this.cache.clear();
+	}
+}
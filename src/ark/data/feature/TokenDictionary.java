@@ -0,0 +1,261 @@
+/**
+ * Copyright 2014 Bill McDowell 
+ *
+ * This file is part of theMess (https://github.com/forkunited/theMess)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy 
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package ark.data.feature;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ark.data.DataTools;
+import ark.wrapper.BrownClusterer;
+
+/**
+ * TokenDictionary interns the tokens of a corpus for n-gram features 
+ * (see ark.data.feature.FeatureNGram).  Each raw token is transformed 
+ * into a gram by a clean function (which memoizes its results, see 
+ * ark.data.CachedStringTransform), and optionally a Brown clusterer, and 
+ * each distinct gram is given an int id.  
+ * N-grams of up to MAX_PACKED_N grams are then represented by the ids of 
+ * their grams packed into a single long key (see getNGramKey), so that 
+ * features can count n-grams and look them up in their vocabularies by 
+ * their keys, and only build strings for the n-grams that they keep (see
+ * getNGram).
+ * 
+ * The key of an n-gram is a function of its string: the string is split 
+ * on underscores, and if it has one to MAX_PACKED_N non-empty parts, its 
+ * key packs the ids of the parts (see getKey).  So the same n-gram always
+ * has the same key, however it was computed, and a key always gives back
+ * the same string.  N-grams that don't have keys (e.g. because they have 
+ * too many parts, or because the dictionary is full) have to be handled
+ * as strings.
+ * 
+ * There is one dictionary for each combination of clean function and 
+ * clusterer instances (see getInstance), shared by all features and data
+ * sets that use them.  Functions are identified by instance rather than
+ * by name, since differently configured functions can share a name (e.g. 
+ * stop word functions built from different gazetteers).  Each dictionary
+ * holds at most MAX_GRAMS grams, and once it's full, grams that it 
+ * doesn't have can't be packed.  Dictionaries can be released with 
+ * clearInstances.  Features keep the dictionary that they started with 
+ * (along with the sentence n-gram caches that refer to its ids, see 
+ * ark.data.feature.SentenceNGramCache.getPackedInstance), so only 
+ * features created or re-configured later use new dictionaries.  
+ * Dictionaries are safe to use from multiple threads.
+ * 
+ * @author Bill McDowell
+ *
+ */
+public class TokenDictionary {
+	public static final int MAX_PACKED_N = 3;
+	public static final int MAX_GRAMS = 1 << 20;
+	private static final int ID_BITS = 21; // Ids are stored plus one so that 0 means no gram
+	private static final int SKIPPED_ID = -1;
+	private static final int UNPACKED_ID = -2;
+	
+	// Maps clean functions to maps from clusterers (or null) to dictionaries
+	private static Map<DataTools.StringTransform, Map<BrownClusterer, TokenDictionary>> instances = new IdentityHashMap<DataTools.StringTransform, Map<BrownClusterer, TokenDictionary>>();
+	
+	private final DataTools.StringTransform cleanFn;
+	private final BrownClusterer clusterer;
+	
+	private final ConcurrentHashMap<String, Integer> gramIds;
+	private volatile String[] grams;
+	private int gramCount;
+	
+	private TokenDictionary(DataTools.StringTransform cleanFn, BrownClusterer clusterer) {
+		this.cleanFn = cleanFn;
+		this.clusterer = clusterer;
+		this.gramIds = new ConcurrentHashMap<String, Integer>();
+		this.grams = new String[1024];
+		this.gramCount = 0;
+	}
+	
+	/**
+	 * @param cleanFn
+	 * @param clusterer (or null)
+	 * @return the dictionary for the clean function and clusterer, which is
+	 * created if it doesn't exist yet.  Clean functions and clusterers are 
+	 * identified by instance.
+	 */
+	public static synchronized TokenDictionary getInstance(DataTools.StringTransform cleanFn, BrownClusterer clusterer) {
+		Map<BrownClusterer, TokenDictionary> clustererDictionaries = instances.get(cleanFn);
+		if (clustererDictionaries == null) {
+			clustererDictionaries = new IdentityHashMap<BrownClusterer, TokenDictionary>();
+			instances.put(cleanFn, clustererDictionaries);
+		}
+		
+		TokenDictionary dictionary = clustererDictionaries.get(clusterer);
+		if (dictionary == null) {
+			dictionary = new TokenDictionary(cleanFn, clusterer);
+			clustererDictionaries.put(clusterer, dictionary);
+		}
+		return dictionary;
+	}
+	
+	/**
+	 * Removes all dictionaries (e.g. to free memory between corpora).  
+	 * Features that already hold a dictionary keep using it.
+	 * 
+	 * @return true if the dictionaries have been removed
+	 */
+	public static synchronized boolean clearInstances() {
+		instances.clear();
+		return true;
+	}
+	
+	/**
+	 * @param token
+	 * @return the id of the gram for the raw token, -1 if the token 
+	 * has no gram (its cleaned form is empty, or it has no cluster), or -2
+	 * if its gram can't be packed on its own (it contains underscores, or 
+	 * the dictionary is full)
+	 */
+	public int getTokenId(String token) {
+		String gram = this.cleanFn.transform(token);
+		if (gram.length() > 0 && this.clusterer != null)
+			gram = this.clusterer.getCluster(gram);
+		
+		if (gram == null || gram.length() == 0)
+			return SKIPPED_ID;
+		else if (gram.indexOf('_') >= 0)
+			return UNPACKED_ID;
+		else
+			return getGramId(gram);
+	}
+	
+	public String toString() {
+		return "TokenDictionary(cleanFn=" + this.cleanFn.toString() + ", clusterer=" + ((this.clusterer == null) ? "" : this.clusterer.getName()) + ")";
+	}
+	
+	public String getGram(int id) {
+		return this.grams[id];
+	}
+	
+	public synchronized int getGramCount() {
+		return this.gramCount;
+	}
+	
+	/**
+	 * @param tokens
+	 * @param startIndex
+	 * @param n
+	 * @return the key of the n-gram of the grams for tokens startIndex 
+	 * through startIndex + n - 1 (see getKey), skipping tokens without 
+	 * grams.  The key is 0 if none of the tokens have grams, and -1 if n 
+	 * is greater than MAX_PACKED_N, or if one of the grams can't be packed
+	 * on its own (see getTokenId).  In the latter case, the key of the
+	 * n-gram can still be found from its string by getKey.
+	 */
+	public long getNGramKey(List<String> tokens, int startIndex, int n) {
+		if (n > MAX_PACKED_N)
+			return -1;
+		
+		long key = 0;
+		for (int i = startIndex; i < startIndex + n; i++) {
+			int id = getTokenId(tokens.get(i));
+			if (id == SKIPPED_ID)
+				continue;
+			if (id < 0)
+				return -1;
+			key = (key << ID_BITS) | (id + 1);
+		}
+		
+		return key;
+	}
+	
+	/**
+	 * @param ngram
+	 * @return the key of the n-gram, which packs the ids of the parts of 
+	 * the n-gram separated by underscores (adding the parts to the 
+	 * dictionary if necessary), or -1 if the n-gram doesn't have one to
+	 * MAX_PACKED_N non-empty parts, or if the dictionary is full
+	 */
+	public long getKey(String ngram) {
+		long key = 0;
+		int partCount = 0;
+		int partStart = 0;
+		while (partStart <= ngram.length()) {
+			int partEnd = ngram.indexOf('_', partStart);
+			if (partEnd < 0)
+				partEnd = ngram.length();
+			if (partEnd == partStart || partCount == MAX_PACKED_N)
+				return -1;
+			
+			int id = getGramId((partStart == 0 && partEnd == ngram.length()) ? ngram : ngram.substring(partStart, partEnd));
+			if (id < 0)
+				return -1;
+			key = (key << ID_BITS) | (id + 1);
+			partCount++;
+			partStart = partEnd + 1;
+		}
+		
+		return key;
+	}
+	
+	/**
+	 * @param key (see getNGramKey and getKey)
+	 * @return the n-gram for the key, with its grams separated by 
+	 * underscores
+	 */
+	public String getNGram(long key) {
+		if (key < (1L << ID_BITS))
+			return getGram((int)key - 1);
+		
+		StringBuilder ngramGlue = new StringBuilder();
+		for (int shift = ID_BITS*(MAX_PACKED_N - 1); shift >= 0; shift -= ID_BITS) {
+			int id = (int)((key >>> shift) & ((1L << ID_BITS) - 1)) - 1;
+			if (id < 0)
+				continue;
+			if (ngramGlue.length() > 0)
+				ngramGlue.append("_");
+			ngramGlue.append(getGram(id));
+		}
+		
+		return ngramGlue.toString();
+	}
+	
+	/**
+	 * @param gram
+	 * @return the id of the gram, which is added to the dictionary if it
+	 * isn't there yet, or -2 if the dictionary is full
+	 */
+	private int getGramId(String gram) {
+		Integer id = this.gramIds.get(gram);
+		return (id != null) ? id : internGram(gram);
+	}
+	
+	private synchronized int internGram(String gram) {
+		Integer id = this.gramIds.get(gram);
+		if (id != null)
+			return id;
+		if (this.gramCount == MAX_GRAMS)
+			return UNPACKED_ID;
+		
+		if (this.gramCount == this.grams.length)
+			this.grams = Arrays.copyOf(this.grams, this.grams.length*2);
+		this.grams[this.gramCount] = gram;
+		id = this.gramCount;
+		this.gramCount++;
+		this.gramIds.put(gram, id);
+		
+		return id;
+	}
+}
@@ -19,9 +19,11 @@
 package ark.experiment;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 
 import ark.data.annotation.Datum;
+import ark.data.feature.PersistentFeatureCache;
 import ark.util.FileUtil;
 import ark.util.SerializationUtil;
 
@@ -43,6 +45,27 @@ import ark.util.SerializationUtil;
  * maxThreads=[maximum number of threads]
  * randomSeed=[random number generator seed]
  * 
+ * Optionally, the memory used to cache feature vectors can be limited by:
+ * 
+ * maxFeatureVectorCacheBytes=[maximum bytes of cached feature vectors per data set]
+ * 
+ * And the memory used to count feature vocabularies can be limited by
+ * (see ark.data.feature.FeaturizedDataSet.setMaxVocabularyCounterSize):
+ * 
+ * maxVocabularyCounterSize=[maximum number of keys in each vocabulary counter]
+ * 
+ * And featurized data sets can be stored as memory-mapped feature matrices
+ * (see ark.data.feature.FeatureMatrix) that are reused across experiment runs 
+ * and processes by:
+ * 
+ * featureMatrixPath=[name of an ark.data.DataTools.Path to a directory]
+ * 
+ * And the vectors computed by individual features can be reused across 
+ * runs that share some of their features (see 
+ * ark.data.feature.PersistentFeatureCache) by:
+ * 
+ * featureCachePath=[name of an ark.data.DataTools.Path to a directory]
+ * 
  * Where the expressions right of the parentheses are replaced by numbers.  The
  * values on the right side of the equals sign can more generally be much
  * more complicated (for example if they represent features or models), and their
@@ -72,6 +95,10 @@ public abstract class Experiment<D extends Datum<L>, L> {
 	protected String inputPath;
 	protected Datum.Tools<D, L> datumTools;
 	protected int maxThreads;
+	protected long maxFeatureVectorCacheBytes = -1; // negative if there is no limit
+	protected int maxVocabularyCounterSize = 0; // 0 if vocabularies should be counted exactly
+	protected File featureMatrixDirectory; // null if feature matrices shouldn't be stored
+	protected PersistentFeatureCache persistentFeatureCache; // null if feature vectors shouldn't be stored
 	
 	public Experiment(String name, String inputPath, Datum.Tools<D, L> datumTools) {
 		this.name = name;
@@ -79,6 +106,18 @@ public abstract class Experiment<D extends Datum<L>, L> {
 		this.datumTools = datumTools;
 	}
 	
+	/**
+	 * @param dataSetName
+	 * @return the file in which to store the feature matrix for the data 
+	 * set with the given name, or null if feature matrices shouldn't be 
+	 * stored
+	 */
+	protected File getFeatureMatrixFile(String dataSetName) {
+		if (this.featureMatrixDirectory == null)
+			return null;
+		return new File(this.featureMatrixDirectory, dataSetName.replaceAll("\\s+", "_") + ".matrix");
+	}
+	
 	protected abstract boolean execute();
 	protected abstract boolean deserializeNext(BufferedReader reader, String nextName) throws IOException;
 	
@@ -87,6 +126,9 @@ public abstract class Experiment<D extends Datum<L>, L> {
 			return deserialize() && execute();
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			if (this.persistentFeatureCache != null)
+				this.persistentFeatureCache.close();
 		}
 		return false;
 	}
@@ -100,6 +142,14 @@ public abstract class Experiment<D extends Datum<L>, L> {
 				this.datumTools.getDataTools().setRandomSeed(Long.valueOf(SerializationUtil.deserializeAssignmentRight(reader)));
 			else if (assignmentLeft.equals("maxThreads"))
 				this.maxThreads = Integer.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+			else if (assignmentLeft.equals("maxFeatureVectorCacheBytes"))
+				this.maxFeatureVectorCacheBytes = Long.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+			else if (assignmentLeft.equals("maxVocabularyCounterSize"))
+				this.maxVocabularyCounterSize = Integer.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+			else if (assignmentLeft.equals("featureMatrixPath"))
+				this.featureMatrixDirectory = new File(this.datumTools.getDataTools().getPath(SerializationUtil.deserializeAssignmentRight(reader)).getValue());
+			else if (assignmentLeft.equals("featureCachePath"))
+				this.persistentFeatureCache = new PersistentFeatureCache(new File(this.datumTools.getDataTools().getPath(SerializationUtil.deserializeAssignmentRight(reader)).getValue()));
 			else if (!deserializeNext(reader, assignmentLeft))
 				return false;
 		}
@@ -19,6 +19,7 @@
 package ark.experiment;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -81,30 +82,72 @@ public class ExperimentGST<D extends Datum<L>, L> extends Experiment<D, L> {
 	@Override
 	protected boolean execute() {
 		OutputWriter output = this.trainData.getDatumTools().getDataTools().getOutputWriter();
-		FeaturizedDataSet<D, L> trainData = new FeaturizedDataSet<D, L>(this.name + " Training", this.features, this.maxThreads, this.datumTools, this.trainData.getLabelMapping());
-		FeaturizedDataSet<D, L> devData = new FeaturizedDataSet<D, L>(this.name + " Dev", this.features, this.maxThreads, this.datumTools, this.devData.getLabelMapping());
+		FeaturizedDataSet<D, L> trainData = new FeaturizedDataSet<D, L>(this.name + " Training", this.maxThreads, this.datumTools, this.trainData.getLabelMapping());
+		FeaturizedDataSet<D, L> devData = new FeaturizedDataSet<D, L>(this.name + " Dev", this.maxThreads, this.datumTools, this.devData.getLabelMapping());
 		
 		FeaturizedDataSet<D, L> testData = null;
 		if (this.testData != null) {
-			testData = new FeaturizedDataSet<D, L>(this.name + " Test", this.features, this.maxThreads, this.datumTools, this.testData.getLabelMapping());
+			testData = new FeaturizedDataSet<D, L>(this.name + " Test", this.maxThreads, this.datumTools, this.testData.getLabelMapping());
 			testData.addAll(this.testData);
 		}
 		
 		trainData.addAll(this.trainData);
 		devData.addAll(this.devData);
 		
+		trainData.setMaxFeatureVectorCacheBytes(this.maxFeatureVectorCacheBytes);
+		devData.setMaxFeatureVectorCacheBytes(this.maxFeatureVectorCacheBytes);
+		if (testData != null)
+			testData.setMaxFeatureVectorCacheBytes(this.maxFeatureVectorCacheBytes);
+		trainData.setMaxVocabularyCounterSize(this.maxVocabularyCounterSize);
+		
+		if (this.persistentFeatureCache != null) {
+			trainData.setPersistentFeatureCache(this.persistentFeatureCache);
+			devData.setPersistentFeatureCache(this.persistentFeatureCache);
+			if (testData != null)
+				testData.setPersistentFeatureCache(this.persistentFeatureCache);
+		}
+		
+		try {
+			return execute(trainData, devData, testData, output);
+		} finally {
+			trainData.close();
+			devData.close();
+			if (testData != null)
+				testData.close();
+		}
+	}
+	
+	private boolean execute(FeaturizedDataSet<D, L> trainData, FeaturizedDataSet<D, L> devData, FeaturizedDataSet<D, L> testData, OutputWriter output) {
+		/*
+		 * Keep values that features extract from the training data during 
+		 * initialization until the training data is frozen, so that they 
+		 * aren't extracted twice (see Feature.setInitValueRetention).  The
+		 * retained values take memory proportional to everything extracted
+		 * from the data, so they aren't kept when vocabularies are counted
+		 * with bounded memory (see setMaxVocabularyCounterSize).
+		 */
+		boolean retainInitValues = trainData.getMaxVocabularyCounterSize() <= 0;
+		for (Feature<D, L> feature : this.features)
+			feature.setInitValueRetention(retainInitValues);
+		
 		output.debugWriteln("Initializing features (" + this.name + ")...");
+		boolean frozenTrainData = trainData.initAndAddFeatures(this.features) && freeze(trainData);
+		for (Feature<D, L> feature : this.features)
+			feature.setInitValueRetention(false);
+		if (!frozenTrainData)
+			return false;
+		
 		for (Feature<D, L> feature : this.features) {
-			if (!feature.init(trainData))
+			if (!devData.addFeature(feature))
 				return false;
 			
-			trainData.addFeature(feature);
-			devData.addFeature(feature);
-			
-			if (testData != null)
-				testData.addFeature(feature);
+			if (testData != null && !testData.addFeature(feature))
+				return false;
 		}
 		
+		if (!freeze(devData) || (testData != null && !freeze(testData)))
+			return false;
+		
 		GridSearchTestValidation<D, L> gridSearchValidation = new GridSearchTestValidation<D, L>(
 				this.name, 
 				this.model, 
@@ -122,6 +165,15 @@ public class ExperimentGST<D extends Datum<L>, L> extends Experiment<D, L> {
 
 		return true;
 	}
+	
+	private boolean freeze(FeaturizedDataSet<D, L> data) {
+		File matrixFile = getFeatureMatrixFile(data.getName());
+		if (matrixFile == null)
+			return data.freeze();
+		else
+			return data.freeze(matrixFile);
+	}
+	
 	@Override
 	protected boolean deserializeNext(BufferedReader reader, String nextName) throws IOException {
 		if (nextName.startsWith("model")) {
@@ -81,6 +81,9 @@ public class ExperimentKCV<D extends Datum<L>, L> extends Experiment<D, L> {
 		);
 		
 		validation.setPossibleHyperParameterValues(this.gridSearchParameterValues);
+		validation.setMaxFeatureVectorCacheBytes(this.maxFeatureVectorCacheBytes);
+		validation.setMaxVocabularyCounterSize(this.maxVocabularyCounterSize);
+		validation.setPersistentFeatureCache(this.persistentFeatureCache);
 		
 		if (validation.run(this.maxThreads, this.errorExampleExtractor).get(0) < 0)
 			return false;
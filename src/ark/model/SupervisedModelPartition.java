@@ -90,11 +90,11 @@ public class SupervisedModelPartition<D extends Datum<L>, L> extends SupervisedM
 			String modelName = this.orderedModels.get(i);
 			FeaturizedDataSet<D, L> modelData = this.constraints.get(modelName).getSatisfyingSubset(data, this.labelMapping);
 			FeaturizedDataSet<D, L> modelTestData = this.constraints.get(modelName).getSatisfyingSubset(testData, this.labelMapping);
+			if (modelData == null || modelTestData == null)
+				return false;
 		
-			for (Feature<D, L> feature : this.features.get(modelName)) {
-				if (!feature.init(modelData) || !modelData.addFeature(feature))
-					return false;
-			}
+			if (!modelData.initAndAddFeatures(this.features.get(modelName)))
+				return false;
 			
 			if (!this.models.get(modelName).train(modelData, modelTestData, evaluations))
 				return false;
@@ -122,6 +122,8 @@ public class SupervisedModelPartition<D extends Datum<L>, L> extends SupervisedM
 		for (int i = 0; i < this.orderedModels.size(); i++) {
 			String modelName = this.orderedModels.get(i);
 			FeaturizedDataSet<D, L> modelData = this.constraints.get(modelName).getSatisfyingSubset(data, this.labelMapping);
+			if (modelData == null)
+				return null;
 			for (Feature<D, L> feature : this.features.get(modelName))
 				if (!modelData.addFeature(feature))
 					return null;
@@ -30,12 +30,14 @@ import java.util.Random;
 
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools;
+import ark.data.feature.FeatureMatrix;
 import ark.data.feature.FeaturizedDataSet;
 import ark.model.evaluation.metric.SupervisedModelEvaluation;
 import ark.util.BidirectionalLookupTable;
 import ark.util.OutputWriter;
 import ark.util.Pair;
 import ark.util.SerializationUtil;
+import ark.util.SparseVector;
 
 /**
  * SupervisedModelSVM represents a multi-class SVM trained with
@@ -166,6 +168,11 @@ public class SupervisedModelSVM<D extends Datum<L>, L> extends SupervisedModel<D
 			}
 		}
 		
+		// Frozen data sets serve vectors from their matrices without touching the cache
+		FeatureMatrix featureMatrix = data.getFeatureMatrix();
+		String vectorSourceStr = (featureMatrix != null) ? featureMatrix.toString() : data.getFeatureVectorCache().toString();
+		output.debugWriteln("(l2=" + this.l2 + ") Finished training with " + data.getName() + " " + vectorSourceStr);
+		
 		return true;
 	}
 	
@@ -224,13 +231,13 @@ public class SupervisedModelSVM<D extends Datum<L>, L> extends SupervisedModel<D
 		boolean datumLabelBest = datumLabel.equals(bestLabel);
 		boolean regularizerUpdate = (this.t % K == 0); // for "occasionality trick"
 		
-		Map<Integer, Double> datumFeatureValues = data.getFeatureVocabularyValues(datum);
+		SparseVector datumFeatureValues = data.getFeatureVocabularyVector(datum);
 		
 		if (iteration == 0) {
 			List<Integer> missingNameKeys = new ArrayList<Integer>();
-			for (Integer key : datumFeatureValues.keySet())
-				if (!this.featureNames.containsKey(key))
-					missingNameKeys.add(key);
+			for (int i = 0; i < datumFeatureValues.size(); i++)
+				if (!this.featureNames.containsKey(datumFeatureValues.getIndex(i)))
+					missingNameKeys.add(datumFeatureValues.getIndex(i));
 			this.featureNames.putAll(data.getFeatureVocabularyNamesForIndices(missingNameKeys));
 		}
 		
@@ -239,9 +246,9 @@ public class SupervisedModelSVM<D extends Datum<L>, L> extends SupervisedModel<D
 			
 		// Update feature weights
 		if (!regularizerUpdate) { // Update only for loss function gradients
-			for (Entry<Integer, Double> featureValue : datumFeatureValues.entrySet()) {
-				int i_datumLabelWeight = getWeightIndex(datumLabel, featureValue.getKey());
-				int i_bestLabelWeight = getWeightIndex(bestLabel, featureValue.getKey());
+			for (int i = 0; i < datumFeatureValues.size(); i++) {
+				int i_datumLabelWeight = getWeightIndex(datumLabel, datumFeatureValues.getIndex(i));
+				int i_bestLabelWeight = getWeightIndex(bestLabel, datumFeatureValues.getIndex(i));
 				
 				if (!this.feature_w.containsKey(i_datumLabelWeight)) {
 					this.feature_w.put(i_datumLabelWeight, 0.0);
@@ -254,8 +261,8 @@ public class SupervisedModelSVM<D extends Datum<L>, L> extends SupervisedModel<D
 				}
 				
 				// Gradients
-				double g_datumLabelWeight = -featureValue.getValue();
-				double g_bestLabelWeight = featureValue.getValue();
+				double g_datumLabelWeight = -datumFeatureValues.getValue(i);
+				double g_bestLabelWeight = datumFeatureValues.getValue(i);
 				
 				// Adagrad G
 				double G_datumLabelWeight = this.feature_G.get(i_datumLabelWeight) + g_datumLabelWeight*g_datumLabelWeight;
@@ -276,12 +283,12 @@ public class SupervisedModelSVM<D extends Datum<L>, L> extends SupervisedModel<D
 			Map<Integer, Double> g = new HashMap<Integer, Double>(); // gradients
 			
 			// Gradient update for hinge loss
-			for (Entry<Integer, Double> featureValue : datumFeatureValues.entrySet()) {
-				int i_datumLabelWeight = getWeightIndex(datumLabel, featureValue.getKey());
-				int i_bestLabelWeight = getWeightIndex(bestLabel, featureValue.getKey());
+			for (int i = 0; i < datumFeatureValues.size(); i++) {
+				int i_datumLabelWeight = getWeightIndex(datumLabel, datumFeatureValues.getIndex(i));
+				int i_bestLabelWeight = getWeightIndex(bestLabel, datumFeatureValues.getIndex(i));
 				
-				g.put(i_datumLabelWeight, -featureValue.getValue());
-				g.put(i_bestLabelWeight, featureValue.getValue());
+				g.put(i_datumLabelWeight, -datumFeatureValues.getValue(i));
+				g.put(i_bestLabelWeight, datumFeatureValues.getValue(i));
 			}
 			
 			// Occasional gradient update for regularizer (this happens after every K training datum updates)
@@ -399,12 +406,22 @@ public class SupervisedModelSVM<D extends Datum<L>, L> extends SupervisedModel<D
 	protected double scoreLabel(FeaturizedDataSet<D, L> data, D datum, L label, boolean includeCost) {
 		double score = 0;		
 		
-		Map<Integer, Double> featureValues = data.getFeatureVocabularyValues(datum);
+		SparseVector featureValues = data.getFeatureVocabularyVector(datum);
 		int labelIndex = this.labelIndices.get(label);
-		for (Entry<Integer, Double> entry : featureValues.entrySet()) {
-			int wIndex = this.getWeightIndex(label, entry.getKey());
-			if (this.feature_w.containsKey(wIndex))
-				score += this.feature_w.get(wIndex)*entry.getValue();
+		int valueCount = featureValues.getValueCount();
+		for (int i = 0; i < valueCount; i++) {
+			int wIndex = this.getWeightIndex(labelIndex, featureValues.getIndex(i));
+			Double w = this.feature_w.get(wIndex);
+			if (w != null)
+				score += w*featureValues.getValue(i);
+		}
+		
+		// Remaining entries are indicators with value 1.0
+		for (int i = valueCount; i < featureValues.size(); i++) {
+			int wIndex = this.getWeightIndex(labelIndex, featureValues.getIndex(i));
+			Double w = this.feature_w.get(wIndex);
+			if (w != null)
+				score += w;
 		}
 		
 		score += this.bias_b[labelIndex];
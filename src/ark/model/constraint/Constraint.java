@@ -21,6 +21,7 @@ package ark.model.constraint;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import ark.data.annotation.Datum;
@@ -53,9 +54,17 @@ public abstract class Constraint<D extends Datum<L>, L> {
 	 * @param data
 	 * @param labelMapping
 	 * @return the subset of the data that satisfies this constraint after the labelMapping
-	 * function is applied to labels in the data.
+	 * function is applied to labels in the data, or null if the data set is missing 
+	 * a feature referenced by the constraint.
 	 */
 	public FeaturizedDataSet<D, L> getSatisfyingSubset(FeaturizedDataSet<D, L> data, LabelMapping<L> labelMapping) {
+		for (String reference : getFeatureReferences()) {
+			if (data.getFeatureByReferenceName(reference) == null) {
+				data.getDatumTools().getDataTools().getOutputWriter().debugWriteln("Error: Constraint " + toString() + " refers to missing feature " + reference + " in " + data.getName());
+				return null;
+			}
+		}
+		
 		FeaturizedDataSet<D, L> satisfactoryData = new FeaturizedDataSet<D, L>(data.getName(), data.getMaxThreads(), data.getDatumTools(), labelMapping);
 		
 		for (D datum : data)
@@ -72,6 +81,16 @@ public abstract class Constraint<D extends Datum<L>, L> {
 	 * @return true if datum from data satisfies this constraint
 	 */
 	public abstract boolean isSatisfying(FeaturizedDataSet<D, L> data, D datum);
+	
+	/**
+	 * @return the reference names of the features in a FeaturizedDataSet 
+	 * that this constraint is computed from (see 
+	 * ark.data.feature.Feature.getFeatureReferences).  These must be added
+	 * to a data set before the constraint is applied to it.
+	 */
+	public List<String> getFeatureReferences() {
+		return Collections.emptyList();
+	}
 
 	/**
 	 * FIXME  This is half-assed due to lack of time.
@@ -18,6 +18,9 @@
 
 package ark.model.constraint;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import ark.data.annotation.Datum;
 import ark.data.feature.FeaturizedDataSet;
 
@@ -46,6 +49,13 @@ public class ConstraintAnd<D extends Datum<L>, L> extends Constraint<D, L> {
 				&& this.secondConstraint.isSatisfying(data, datum);
 	}
 	
+	@Override
+	public List<String> getFeatureReferences() {
+		List<String> featureReferences = new ArrayList<String>(this.firstConstraint.getFeatureReferences());
+		featureReferences.addAll(this.secondConstraint.getFeatureReferences());
+		return featureReferences;
+	}
+	
 	@Override
 	public String toString() {
 		return "And(" + this.firstConstraint.toString() + ", " + this.secondConstraint.toString() + ")";
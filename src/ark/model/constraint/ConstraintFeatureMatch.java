@@ -18,13 +18,14 @@
 
 package ark.model.constraint;
 
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Arrays;
+import java.util.List;
 import java.util.regex.Pattern;
 
 import ark.data.annotation.Datum;
 import ark.data.feature.Feature;
 import ark.data.feature.FeaturizedDataSet;
+import ark.util.SparseVector;
 
 /**
  * ConstraintFeatureMatch represents a regex constraint on the names of
@@ -33,7 +34,10 @@ import ark.data.feature.FeaturizedDataSet;
  * by the name 'featureReference'.  A datum d satisfies this constraint if there
  * is at least one component in the vector computed by the referenced feature whose
  * name matches the the specified regex ('pattern'), and the value of this component
- * for d is at least at the threshold 'minValue'.
+ * for d is at least at the threshold 'minValue'.  Components without names 
+ * (e.g. hashed n-grams whose names weren't sampled) never match, and a datum
+ * for which the referenced feature fails to compute a vector doesn't satisfy
+ * the constraint.
  * 
  * @author Bill McDowell
  *
@@ -54,18 +58,28 @@ public class ConstraintFeatureMatch<D extends Datum<L>, L> extends Constraint<D,
 		@Override
 		public boolean isSatisfying(FeaturizedDataSet<D, L> data, D datum) {	
 			Feature<D, L> feature = data.getFeatureByReferenceName(this.featureReference);
-			Map<Integer, Double> featureValues = feature.computeVector(datum); // FIXME Faster to refer to data-set,  but this is fine for now
-			Map<Integer, String> vocabulary = feature.getVocabularyForIndices(featureValues.keySet());
+			if (feature == null)
+				return false;
+			SparseVector featureValues = data.getFeatureVector(datum, feature); // Shared with the data set's other uses of the feature for this datum
+			if (featureValues == null)
+				return false;
 			
-			for (Entry<Integer, String> entry : vocabulary.entrySet()) {
-				if (this.pattern.matcher(entry.getValue()).matches() && 
-						featureValues.get(entry.getKey()) >= this.minValue)
+			for (int i = 0; i < featureValues.size(); i++) {
+				if (featureValues.getValue(i) < this.minValue)
+					continue;
+				String term = feature.getVocabularyTerm(featureValues.getIndex(i));
+				if (term != null && this.pattern.matcher(term).matches())
 					return true;
 			}
 			
 			return false;
 		}
 		
+		@Override
+		public List<String> getFeatureReferences() {
+			return Arrays.asList(this.featureReference);
+		}
+		
 		public String toString() {
 			return "FeatureMatch(" + this.featureReference + ", " + this.minValue + ", " + this.pattern.pattern() + ")";
 		}
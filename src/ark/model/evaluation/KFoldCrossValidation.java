@@ -34,6 +34,7 @@ import ark.data.annotation.DataSet;
 import ark.data.annotation.Datum;
 import ark.data.feature.Feature;
 import ark.data.feature.FeaturizedDataSet;
+import ark.data.feature.PersistentFeatureCache;
 import ark.model.SupervisedModel;
 import ark.model.evaluation.metric.SupervisedModelEvaluation;
 import ark.util.OutputWriter;
@@ -64,6 +65,9 @@ public class KFoldCrossValidation<D extends Datum<L>, L> {
 	// Map from hyper-parameters to possible values for grid search
 	// This will be null if there shouldn't be a grid search
 	private Map<String, List<String>> possibleParameterValues; 
+	private long maxFeatureVectorCacheBytes; // Budget for each fold data set's feature vector cache (negative for none)
+	private int maxVocabularyCounterSize; // Capacity of the counters used to initialize features on each fold (0 for exact counting)
+	private PersistentFeatureCache persistentFeatureCache; // Feature vectors shared across folds and runs (or null)
 	private DecimalFormat cleanDouble;
 	
 	/**
@@ -93,6 +97,8 @@ public class KFoldCrossValidation<D extends Datum<L>, L> {
 		this.folds = data.makePartition(foldDistribution, data.getDatumTools().getDataTools().getGlobalRandom());
 		this.possibleParameterValues = new HashMap<String, List<String>>();
 		this.cleanDouble = new DecimalFormat("0.00");
+		this.maxFeatureVectorCacheBytes = -1;
+		this.maxVocabularyCounterSize = 0;
 	}
 	
 	public boolean addPossibleHyperParameterValue(String parameter, String parameterValue) {
@@ -108,9 +114,31 @@ public class KFoldCrossValidation<D extends Datum<L>, L> {
 		return true;
 	}
 	
+	public boolean setMaxFeatureVectorCacheBytes(long maxFeatureVectorCacheBytes) {
+		this.maxFeatureVectorCacheBytes = maxFeatureVectorCacheBytes;
+		return true;
+	}
+	
+	public boolean setMaxVocabularyCounterSize(int maxVocabularyCounterSize) {
+		this.maxVocabularyCounterSize = maxVocabularyCounterSize;
+		return true;
+	}
+	
+	public boolean setPersistentFeatureCache(PersistentFeatureCache persistentFeatureCache) {
+		this.persistentFeatureCache = persistentFeatureCache;
+		return true;
+	}
+	
 	public List<Double> run(int maxThreads, Datum.Tools.TokenSpanExtractor<D, L> errorExampleExtractor) {
 		ConfusionMatrix<D, L> aggregateConfusions = new ConfusionMatrix<D, L>(this.model.getValidLabels(), this.model.getLabelMapping());
 		
+		/*
+		 * Cache raw feature values so that the features' clones in each fold 
+		 * only extract them once per datum (see Feature.setRawValueCaching) 
+		 */
+		for (Feature<D, L> feature : this.features)
+			feature.setRawValueCaching(true);
+		
 		/*
 		 * Get results, using a separate thread for each fold
 		 */
@@ -135,6 +163,9 @@ public class KFoldCrossValidation<D extends Datum<L>, L> {
 		} catch (Exception e) {
 			e.printStackTrace();
 			return null;
+		} finally {
+			for (Feature<D, L> feature : this.features)
+				feature.setRawValueCaching(false);
 		}
 		
 		/* 
@@ -288,9 +319,9 @@ public class KFoldCrossValidation<D extends Datum<L>, L> {
 			output.debugWriteln("Initializing CV data sets for " + name);
 			Datum.Tools<D, L> datumTools = folds.get(this.foldIndex).getDatumTools();
 			Datum.Tools.LabelMapping<L> labelMapping = folds.get(this.foldIndex).getLabelMapping();
-			FeaturizedDataSet<D, L> testData = new FeaturizedDataSet<D, L>(namePrefix + " Test", features, this.maxThreads, datumTools, labelMapping);
-			FeaturizedDataSet<D, L> trainData = new FeaturizedDataSet<D, L>(namePrefix + " Training", features, this.maxThreads, datumTools, labelMapping);
-			FeaturizedDataSet<D, L> devData = new FeaturizedDataSet<D, L>(namePrefix + " Dev", features, this.maxThreads, datumTools, labelMapping);
+			FeaturizedDataSet<D, L> testData = new FeaturizedDataSet<D, L>(namePrefix + " Test", this.maxThreads, datumTools, labelMapping);
+			FeaturizedDataSet<D, L> trainData = new FeaturizedDataSet<D, L>(namePrefix + " Training", this.maxThreads, datumTools, labelMapping);
+			FeaturizedDataSet<D, L> devData = new FeaturizedDataSet<D, L>(namePrefix + " Dev", this.maxThreads, datumTools, labelMapping);
 			for (int j = 0; j < folds.size(); j++) {
 				if (j == this.foldIndex) {
 					testData.addAll(folds.get(j));
@@ -301,19 +332,45 @@ public class KFoldCrossValidation<D extends Datum<L>, L> {
 				}
 			}
 			
+			testData.setMaxFeatureVectorCacheBytes(maxFeatureVectorCacheBytes);
+			trainData.setMaxFeatureVectorCacheBytes(maxFeatureVectorCacheBytes);
+			devData.setMaxFeatureVectorCacheBytes(maxFeatureVectorCacheBytes);
+			trainData.setMaxVocabularyCounterSize(maxVocabularyCounterSize);
+			
+			if (persistentFeatureCache != null) {
+				testData.setPersistentFeatureCache(persistentFeatureCache);
+				trainData.setPersistentFeatureCache(persistentFeatureCache);
+				devData.setPersistentFeatureCache(persistentFeatureCache);
+			}
+			
+			try {
+				return validate(trainData, devData, testData, output, namePrefix, datumTools);
+			} finally {
+				trainData.close();
+				devData.close();
+				testData.close();
+			}
+		}
+		
+		private ValidationResult validate(FeaturizedDataSet<D, L> trainData, FeaturizedDataSet<D, L> devData, FeaturizedDataSet<D, L> testData, OutputWriter output, String namePrefix, Datum.Tools<D, L> datumTools) {
 			/* Need cloned bunch of features for the fold so that they can be 
 			 * reinitialized without affecting other folds' results */
 			output.debugWriteln("Initializing features for CV fold " + this.foldIndex);
-			for (Feature<D, L> feature : features) {
-				Feature<D, L> foldFeature = feature.clone(datumTools, this.parameterEnvironment);
-				if (!foldFeature.init(trainData))
+			List<Feature<D, L>> foldFeatures = new ArrayList<Feature<D, L>>(features.size());
+			for (Feature<D, L> feature : features)
+				foldFeatures.add(feature.clone(datumTools, this.parameterEnvironment));
+			
+			if (!trainData.initAndAddFeatures(foldFeatures))
+				return null;
+			
+			for (Feature<D, L> foldFeature : foldFeatures) {
+				if (!devData.addFeature(foldFeature) || !testData.addFeature(foldFeature))
 					return null;
-				
-				trainData.addFeature(foldFeature);
-				devData.addFeature(foldFeature);
-				testData.addFeature(foldFeature);
 			}
 			
+			if (!trainData.freeze() || !devData.freeze() || !testData.freeze())
+				return null;
+			
 			SupervisedModel<D, L> foldModel = model.clone(datumTools, this.parameterEnvironment);
 			
 			output.dataWriteln("--------------- Fold: " + this.foldIndex + " ---------------");
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2014 Bill McDowell 
+ *
+ * This file is part of theMess (https://github.com/forkunited/theMess)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy 
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package ark.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * BoundedCounterTable is a CounterTable that approximately counts 
+ * items in memory proportional to a fixed capacity k, using the 
+ * Misra-Gries frequent items summary.  Whenever the table holds more 
+ * than 2k items, the (k+1)-th largest count is subtracted from every 
+ * count, and items whose counts drop to zero are removed.  Tables that
+ * were counted separately can be merged with addCounts (the summary is
+ * mergeable), so the counting can be split across threads.
+ * 
+ * The remaining counts underestimate the true counts by at most 
+ * getMaxError() = (N - S)/(k + 1), where N is the total of all 
+ * increments and S is the total of the remaining counts.  So if 
+ * getMaxError() is less than some threshold, then every item with a 
+ * true count of at least the threshold is guaranteed to be in the 
+ * table (see getCandidates).  The exact counts of the candidates can 
+ * then be found with a second pass over the data.
+ * 
+ * Packed keys (see CounterTable.incrementPackedCount) are counted in the
+ * same summary as the other items, so the capacity bounds both together.
+ * 
+ * @author Bill McDowell
+ *
+ * @param <T> item type
+ */
+public class BoundedCounterTable<T> extends CounterTable<T> {
+	private int capacity;
+	private long totalCount;
+	
+	public BoundedCounterTable(int capacity) {
+		super();
+		this.capacity = Math.max(1, capacity);
+		this.totalCount = 0;
+	}
+	
+	public int getCapacity() {
+		return this.capacity;
+	}
+	
+	@Override
+	public void incrementCount(T w) {
+		incrementCount(w, 1);
+	}
+	
+	@Override
+	public void incrementCount(T w, int count) {
+		super.incrementCount(w, count);
+		this.totalCount += count;
+		if (getSize() > 2*this.capacity)
+			compress();
+	}
+	
+	@Override
+	public void incrementPackedCount(long key) {
+		incrementPackedCount(key, 1);
+	}
+	
+	@Override
+	public void incrementPackedCount(long key, int count) {
+		super.incrementPackedCount(key, count);
+		this.totalCount += count;
+		if (getSize() > 2*this.capacity)
+			compress();
+	}
+	
+	@Override
+	public void addCounts(CounterTable<T> table) {
+		ObjectIntHashMap<T> tableCounts = table.counts;
+		for (int i = 0; i < tableCounts.getSlotCount(); i++)
+			if (tableCounts.isSlotUsed(i))
+				super.incrementCount(tableCounts.getSlotKey(i), tableCounts.getSlotValue(i));
+		LongIntHashMap tablePackedCounts = table.packedCounts;
+		for (int i = 0; i < tablePackedCounts.getSlotCount(); i++)
+			if (tablePackedCounts.isSlotUsed(i))
+				super.incrementPackedCount(tablePackedCounts.getSlotKey(i), tablePackedCounts.getSlotValue(i));
+		
+		if (table instanceof BoundedCounterTable)
+			this.totalCount += ((BoundedCounterTable<T>)table).totalCount;
+		else
+			this.totalCount += sumCounts(tableCounts) + sumCounts(tablePackedCounts);
+		
+		if (getSize() > this.capacity)
+			compress();
+	}
+	
+	/**
+	 * @return an upper bound on the amount by which any count in the
+	 * table (or the zero count of any item missing from the table) is 
+	 * less than the true count
+	 */
+	public int getMaxError() {
+		return (int)((this.totalCount - sumCounts(this.counts) - sumCounts(this.packedCounts))/(this.capacity + 1));
+	}
+	
+	/**
+	 * @param minCount
+	 * @return the items that might have a true count of at least minCount.
+	 * If getMaxError() < minCount, then this contains every item with a 
+	 * true count of at least minCount.
+	 */
+	public Set<T> getCandidates(int minCount) {
+		int minEstimate = minCount - getMaxError();
+		Set<T> candidates = new HashSet<T>();
+		for (int i = 0; i < this.counts.getSlotCount(); i++)
+			if (this.counts.isSlotUsed(i) && this.counts.getSlotValue(i) >= minEstimate)
+				candidates.add(this.counts.getSlotKey(i));
+		return candidates;
+	}
+	
+	/**
+	 * @param minCount
+	 * @return the packed keys that might have a true count of at least 
+	 * minCount (mapped to their estimated counts), like getCandidates
+	 */
+	public LongIntHashMap getPackedCandidates(int minCount) {
+		int minEstimate = minCount - getMaxError();
+		LongIntHashMap candidates = new LongIntHashMap();
+		for (int i = 0; i < this.packedCounts.getSlotCount(); i++)
+			if (this.packedCounts.isSlotUsed(i) && this.packedCounts.getSlotValue(i) >= minEstimate)
+				candidates.put(this.packedCounts.getSlotKey(i), this.packedCounts.getSlotValue(i));
+		return candidates;
+	}
+	
+	private boolean compress() {
+		int size = getSize();
+		if (size <= this.capacity)
+			return true;
+		
+		int[] values = new int[size];
+		int j = 0;
+		for (int i = 0; i < this.counts.getSlotCount(); i++)
+			if (this.counts.isSlotUsed(i))
+				values[j++] = this.counts.getSlotValue(i);
+		for (int i = 0; i < this.packedCounts.getSlotCount(); i++)
+			if (this.packedCounts.isSlotUsed(i))
+				values[j++] = this.packedCounts.getSlotValue(i);
+		Arrays.sort(values);
+		int decrement = values[size - this.capacity - 1]; // (k+1)-th largest count
+		
+		for (int i = 0; i < this.counts.getSlotCount(); i++)
+			if (this.counts.isSlotUsed(i))
+				this.counts.setSlotValue(i, this.counts.getSlotValue(i) - decrement);
+		for (int i = 0; i < this.packedCounts.getSlotCount(); i++)
+			if (this.packedCounts.isSlotUsed(i))
+				this.packedCounts.setSlotValue(i, this.packedCounts.getSlotValue(i) - decrement);
+		this.counts.retainValuesAtLeast(1);
+		this.packedCounts.retainValuesAtLeast(1);
+		
+		return true;
+	}
+	
+	private static <T> long sumCounts(ObjectIntHashMap<T> counts) {
+		long sum = 0;
+		for (int i = 0; i < counts.getSlotCount(); i++)
+			if (counts.isSlotUsed(i))
+				sum += counts.getSlotValue(i);
+		return sum;
+	}
+	
+	private static long sumCounts(LongIntHashMap counts) {
+		long sum = 0;
+		for (int i = 0; i < counts.getSlotCount(); i++)
+			if (counts.isSlotUsed(i))
+				sum += counts.getSlotValue(i);
+		return sum;
+	}
+}
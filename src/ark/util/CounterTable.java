@@ -19,10 +19,10 @@
 package ark.util;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.TreeMap;
 
 /**
@@ -30,65 +30,164 @@ import java.util.TreeMap;
  * and decrementing counts for each item, and transforming the histogram
  * into various data-structures.
  * 
+ * The counts are stored in an ark.util.ObjectIntHashMap, so incrementing
+ * a count doesn't allocate anything unless the item is new.
+ * 
+ * Items that can be packed into long keys (e.g. n-grams of interned 
+ * token ids; see ark.data.feature.TokenDictionary) can be counted 
+ * separately by their keys (see incrementPackedCount) in an 
+ * ark.util.LongIntHashMap, so that they're never boxed or turned into 
+ * objects while counting.  Packed keys are merged and pruned along with
+ * the other items, but the methods that return items only return the
+ * items that aren't packed.
+ * 
  * @author Lingpeng Kong, Bill McDowell
  * 
  */
 public class CounterTable<T>{
-	public HashMap<T, Integer> counts;
+	protected ObjectIntHashMap<T> counts;
+	protected LongIntHashMap packedCounts;
 	
 	public CounterTable(){
-		this.counts= new HashMap<T,Integer>();
+		this.counts = new ObjectIntHashMap<T>();
+		this.packedCounts = new LongIntHashMap();
 	}
 	
 	public void incrementCount(T w){
-		if(this.counts.containsKey(w)){
-			this.counts.put(w, this.counts.get(w) + 1);
-		}else{
-			this.counts.put(w, 1);
-		}
+		this.counts.increment(w, 1);
 	}
 	
-	public void removeCountsLessThan(int minCount) {
-		List<T> valuesToRemove = new ArrayList<T>();
-		for (Entry<T, Integer> entry : this.counts.entrySet()) {
-			if (entry.getValue() < minCount)
-				valuesToRemove.add(entry.getKey());
-		}
+	public void incrementCount(T w, int count){
+		this.counts.increment(w, count);
+	}
+	
+	public int getCount(T w) {
+		return this.counts.get(w, 0);
+	}
+	
+	public void incrementPackedCount(long key) {
+		this.packedCounts.increment(key, 1);
+	}
+	
+	public void incrementPackedCount(long key, int count) {
+		this.packedCounts.increment(key, count);
+	}
+	
+	public int getPackedCount(long key) {
+		return this.packedCounts.get(key, 0);
+	}
+	
+	/**
+	 * Adds the counts from another table to this one (e.g. to merge
+	 * tables that were counted separately by several threads)
+	 * 
+	 * @param table
+	 */
+	public void addCounts(CounterTable<T> table) {
+		ObjectIntHashMap<T> tableCounts = table.counts;
+		for (int i = 0; i < tableCounts.getSlotCount(); i++)
+			if (tableCounts.isSlotUsed(i))
+				this.counts.increment(tableCounts.getSlotKey(i), tableCounts.getSlotValue(i));
 		
-		for (T valueToRemove : valuesToRemove)
-			this.counts.remove(valueToRemove);
+		LongIntHashMap tablePackedCounts = table.packedCounts;
+		for (int i = 0; i < tablePackedCounts.getSlotCount(); i++)
+			if (tablePackedCounts.isSlotUsed(i))
+				this.packedCounts.increment(tablePackedCounts.getSlotKey(i), tablePackedCounts.getSlotValue(i));
+	}
+	
+	public void removeCountsLessThan(int minCount) {
+		this.counts.retainValuesAtLeast(minCount);
+		this.packedCounts.retainValuesAtLeast(minCount);
 	}
 	
 	public Map<T, Integer> buildIndex() {
 		HashMap<T, Integer> index = new HashMap<T, Integer>(this.counts.size());
 		int i = 0;
 		
-		for (Entry<T, Integer> entry : this.counts.entrySet()) {
-			index.put(entry.getKey(), i);
+		for (T item : getItems()) {
+			index.put(item, i);
 			i++;
 		}
 		
 		return index;
 	}
 	
+	/**
+	 * @return an index that numbers the items in their natural order, so
+	 * that the index doesn't depend on the order in which the counts
+	 * were accumulated (the items must be Comparable)
+	 */
+	public Map<T, Integer> buildSortedIndex() {
+		List<T> items = getSortedItems();
+		
+		HashMap<T, Integer> index = new HashMap<T, Integer>(items.size());
+		for (int i = 0; i < items.size(); i++)
+			index.put(items.get(i), i);
+		
+		return index;
+	}
+	
+	public List<T> getItems() {
+		List<T> items = new ArrayList<T>(this.counts.size());
+		for (int i = 0; i < this.counts.getSlotCount(); i++)
+			if (this.counts.isSlotUsed(i))
+				items.add(this.counts.getSlotKey(i));
+		return items;
+	}
+	
+	/**
+	 * @return the items in their natural order (the items must be 
+	 * Comparable)
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public List<T> getSortedItems() {
+		List items = getItems();
+		Collections.sort(items);
+		return items;
+	}
+	
 	public TreeMap<Integer, List<T>> getSortedCounts() {
 		TreeMap<Integer, List<T>> sortedCounts = new TreeMap<Integer, List<T>>();
 		
-		for (Entry<T, Integer> entry : this.counts.entrySet()) {
-			if (!sortedCounts.containsKey(entry.getValue()))
-				sortedCounts.put(entry.getValue(), new ArrayList<T>());
+		for (int i = 0; i < this.counts.getSlotCount(); i++) {
+			if (!this.counts.isSlotUsed(i))
+				continue;
+			int count = this.counts.getSlotValue(i);
+			if (!sortedCounts.containsKey(count))
+				sortedCounts.put(count, new ArrayList<T>());
 			
-			sortedCounts.get(entry.getValue()).add(entry.getKey());
+			sortedCounts.get(count).add(this.counts.getSlotKey(i));
 		}
 		
 		return sortedCounts;
 	}
 	
+	/**
+	 * @return a map containing a copy of the counts
+	 */
 	public Map<T, Integer> getCounts() {
+		Map<T, Integer> counts = new HashMap<T, Integer>(this.counts.size()*2);
+		for (int i = 0; i < this.counts.getSlotCount(); i++)
+			if (this.counts.isSlotUsed(i))
+				counts.put(this.counts.getSlotKey(i), this.counts.getSlotValue(i));
+		return counts;
+	}
+	
+	public ObjectIntHashMap<T> getCountTable() {
 		return this.counts;
 	}
 	
+	/**
+	 * @return the counts of packed keys (see incrementPackedCount)
+	 */
+	public LongIntHashMap getPackedCountTable() {
+		return this.packedCounts;
+	}
+	
+	/**
+	 * @return the number of items and packed keys in the table
+	 */
 	public int getSize() {
-		return this.counts.size();
+		return this.counts.size() + this.packedCounts.size();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2014 Bill McDowell 
+ *
+ * This file is part of theMess (https://github.com/forkunited/theMess)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy 
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package ark.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GenerationalCache is a bounded cache that is split into two 
+ * generations.  Values are added to the current generation, and when it
+ * holds half of the maximum number of entries, it becomes the old 
+ * generation, and the previous old generation is dropped.  Hits in the 
+ * old generation are copied into the current one, so frequently used 
+ * entries survive, and the cache never holds more than the maximum 
+ * number of entries.  This gives roughly least-recently-used eviction
+ * without bookkeeping on each hit.  The cache is safe to use from 
+ * multiple threads.
+ * 
+ * @author Bill McDowell
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class GenerationalCache<K, V> {
+	private volatile int maxSize;
+	private volatile ConcurrentHashMap<K, V> currentCache;
+	private volatile ConcurrentHashMap<K, V> oldCache;
+	private AtomicLong hitCount;
+	private AtomicLong missCount;
+	
+	/**
+	 * @param maxSize - maximum number of entries, or 0 to disable caching
+	 */
+	public GenerationalCache(int maxSize) {
+		this.maxSize = Math.max(0, maxSize);
+		this.currentCache = new ConcurrentHashMap<K, V>();
+		this.oldCache = new ConcurrentHashMap<K, V>();
+		this.hitCount = new AtomicLong();
+		this.missCount = new AtomicLong();
+	}
+	
+	/**
+	 * @param key
+	 * @return the value cached for the key, or null if it isn't cached
+	 */
+	public V get(K key) {
+		if (this.maxSize == 0)
+			return null;
+		
+		ConcurrentHashMap<K, V> currentCache = this.currentCache;
+		V value = currentCache.get(key);
+		if (value != null) {
+			this.hitCount.incrementAndGet();
+			return value;
+		}
+		
+		value = this.oldCache.get(key);
+		if (value == null) {
+			this.missCount.incrementAndGet();
+			return null;
+		}
+		
+		this.hitCount.incrementAndGet();
+		put(currentCache, key, value);
+		return value;
+	}
+	
+	/**
+	 * @param key
+	 * @param value
+	 * @return true if the value has been cached
+	 */
+	public boolean put(K key, V value) {
+		if (this.maxSize == 0)
+			return false;
+		put(this.currentCache, key, value);
+		return true;
+	}
+	
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+	
+	/**
+	 * @param maxSize - maximum number of entries, or 0 to disable caching
+	 * @return true if the size has been set.  The cache is emptied if it 
+	 * holds too many entries for the new size.
+	 */
+	public synchronized boolean setMaxSize(int maxSize) {
+		this.maxSize = Math.max(0, maxSize);
+		if (this.maxSize == 0 || this.currentCache.size() >= this.maxSize / 2) {
+			this.currentCache = new ConcurrentHashMap<K, V>();
+			this.oldCache = new ConcurrentHashMap<K, V>();
+		}
+		return true;
+	}
+	
+	public long getHitCount() {
+		return this.hitCount.get();
+	}
+	
+	public long getMissCount() {
+		return this.missCount.get();
+	}
+	
+	public double getHitRate() {
+		long hits = this.hitCount.get();
+		long total = hits + this.missCount.get();
+		return (total == 0) ? 0.0 : hits/(double)total;
+	}
+	
+	public synchronized boolean clear() {
+		this.currentCache = new ConcurrentHashMap<K, V>();
+		this.oldCache = new ConcurrentHashMap<K, V>();
+		this.hitCount.set(0);
+		this.missCount.set(0);
+		return true;
+	}
+	
+	private void put(ConcurrentHashMap<K, V> currentCache, K key, V value) {
+		currentCache.put(key, value);
+		if (currentCache.size() >= Math.max(1, this.maxSize / 2))
+			rotate(currentCache);
+	}
+	
+	private synchronized void rotate(ConcurrentHashMap<K, V> fullCache) {
+		if (this.currentCache != fullCache) // Another thread already rotated it
+			return;
+		this.oldCache = fullCache;
+		this.currentCache = new ConcurrentHashMap<K, V>();
+	}
+}
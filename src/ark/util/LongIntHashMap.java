@@ -0,0 +1,213 @@
+/**
+ * Copyright 2014 Bill McDowell 
+ *
+ * This file is part of theMess (https://github.com/forkunited/theMess)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy 
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package ark.util;
+
+/**
+ * LongIntHashMap maps primitive longs to primitive ints using open 
+ * addressing with linear probing over parallel arrays (see 
+ * ark.util.ObjectIntHashMap), so lookups of packed keys (e.g. tuples of
+ * feature indices) don't box anything.
+ * 
+ * Mappings can't be removed individually; use retainValuesAtLeast
+ * to drop many of them at once.  The table isn't synchronized, but 
+ * concurrent reads are safe once it's no longer modified.
+ * 
+ * @author Bill McDowell
+ *
+ */
+public class LongIntHashMap {
+	private static final int MIN_CAPACITY = 16;
+	
+	private long[] keys;
+	private int[] values;
+	private boolean[] used;
+	private int size;
+	private int mask;
+	private int resizeThreshold;
+	
+	public LongIntHashMap() {
+		this(MIN_CAPACITY/2);
+	}
+	
+	public LongIntHashMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity*3/4 < expectedSize && capacity < (1 << 30))
+			capacity <<= 1;
+		allocate(capacity);
+	}
+	
+	public int size() {
+		return this.size;
+	}
+	
+	public boolean containsKey(long key) {
+		return this.used[find(key)];
+	}
+	
+	/**
+	 * @param key
+	 * @param defaultValue
+	 * @return the value mapped to by key, or defaultValue if there 
+	 * is no such value
+	 */
+	public int get(long key, int defaultValue) {
+		int slot = find(key);
+		return this.used[slot] ? this.values[slot] : defaultValue;
+	}
+	
+	public boolean put(long key, int value) {
+		int slot = find(key);
+		this.values[slot] = value;
+		if (!this.used[slot]) {
+			this.keys[slot] = key;
+			this.used[slot] = true;
+			this.size++;
+			if (this.size > this.resizeThreshold)
+				resize(this.keys.length*2);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Adds delta to the value mapped to by key (which is 0 if there is
+	 * no such value)
+	 * 
+	 * @param key
+	 * @param delta
+	 * @return the new value
+	 */
+	public int increment(long key, int delta) {
+		int slot = find(key);
+		if (this.used[slot]) {
+			this.values[slot] += delta;
+			return this.values[slot];
+		}
+		
+		this.keys[slot] = key;
+		this.values[slot] = delta;
+		this.used[slot] = true;
+		this.size++;
+		if (this.size > this.resizeThreshold)
+			resize(this.keys.length*2);
+		
+		return delta;
+	}
+	
+	/**
+	 * Removes all mappings to values less than minValue
+	 * 
+	 * @param minValue
+	 * @return true if the mappings have been removed
+	 */
+	public boolean retainValuesAtLeast(int minValue) {
+		long[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+		boolean[] oldUsed = this.used;
+		int retainedSize = 0;
+		for (int i = 0; i < oldKeys.length; i++)
+			if (oldUsed[i] && oldValues[i] >= minValue)
+				retainedSize++;
+		
+		if (retainedSize == this.size)
+			return true;
+		
+		int capacity = MIN_CAPACITY;
+		while (capacity*3/4 < retainedSize && capacity < (1 << 30))
+			capacity <<= 1;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (!oldUsed[i] || oldValues[i] < minValue)
+				continue;
+			int slot = find(oldKeys[i]);
+			this.keys[slot] = oldKeys[i];
+			this.values[slot] = oldValues[i];
+			this.used[slot] = true;
+		}
+		this.size = retainedSize;
+		
+		return true;
+	}
+	
+	/**
+	 * @return the number of slots in the table.  Slots can be iterated
+	 * over using isSlotUsed, getSlotKey, and getSlotValue to visit all
+	 * mappings without allocating anything.
+	 */
+	public int getSlotCount() {
+		return this.keys.length;
+	}
+	
+	public boolean isSlotUsed(int slot) {
+		return this.used[slot];
+	}
+	
+	public long getSlotKey(int slot) {
+		return this.keys[slot];
+	}
+	
+	public int getSlotValue(int slot) {
+		return this.values[slot];
+	}
+	
+	public boolean setSlotValue(int slot, int value) {
+		this.values[slot] = value;
+		return true;
+	}
+	
+	private int find(long key) {
+		int slot = hash(key) & this.mask;
+		while (this.used[slot]) {
+			if (this.keys[slot] == key)
+				return slot;
+			slot = (slot + 1) & this.mask;
+		}
+		return slot;
+	}
+	
+	private void resize(int capacity) {
+		long[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+		boolean[] oldUsed = this.used;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (!oldUsed[i])
+				continue;
+			int slot = hash(oldKeys[i]) & this.mask;
+			while (this.used[slot])
+				slot = (slot + 1) & this.mask;
+			this.keys[slot] = oldKeys[i];
+			this.values[slot] = oldValues[i];
+			this.used[slot] = true;
+		}
+	}
+	
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		this.values = new int[capacity];
+		this.used = new boolean[capacity];
+		this.mask = capacity - 1;
+		this.resizeThreshold = (capacity*3)/4;
+	}
+	
+	private static int hash(long key) {
+		long h = key*0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
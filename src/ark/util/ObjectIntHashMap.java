@@ -0,0 +1,237 @@
+/**
+ * Copyright 2014 Bill McDowell 
+ *
+ * This file is part of theMess (https://github.com/forkunited/theMess)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy 
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package ark.util;
+
+/**
+ * ObjectIntHashMap maps objects of type T to primitive ints using
+ * open addressing with linear probing over parallel key and value
+ * arrays.  Compared to a HashMap<T, Integer>, it doesn't allocate an
+ * entry or a boxed Integer for each mapping, and counts can be 
+ * incremented in place with a single probe (see increment).  It's
+ * used as the backing table of ark.util.CounterTable and 
+ * ark.util.Vocabulary.
+ * 
+ * Mappings can't be removed individually; use retainValuesAtLeast
+ * to drop many of them at once.  The table isn't synchronized, but 
+ * concurrent reads are safe once it's no longer modified.
+ * 
+ * @author Bill McDowell
+ *
+ * @param <T> key type
+ */
+public class ObjectIntHashMap<T> {
+	private static final Object NULL_KEY = new Object();
+	private static final int MIN_CAPACITY = 16;
+	
+	private Object[] keys;
+	private int[] values;
+	private int size;
+	private int mask;
+	private int resizeThreshold;
+	
+	public ObjectIntHashMap() {
+		this(MIN_CAPACITY/2);
+	}
+	
+	public ObjectIntHashMap(int expectedSize) {
+		allocate(capacityFor(expectedSize));
+	}
+	
+	public int size() {
+		return this.size;
+	}
+	
+	public boolean containsKey(T key) {
+		return this.keys[find(key)] != null;
+	}
+	
+	/**
+	 * @param key
+	 * @param defaultValue
+	 * @return the value mapped to by key, or defaultValue if there 
+	 * is no such value
+	 */
+	public int get(T key, int defaultValue) {
+		int slot = find(key);
+		return (this.keys[slot] == null) ? defaultValue : this.values[slot];
+	}
+	
+	public boolean put(T key, int value) {
+		int slot = find(key);
+		if (this.keys[slot] == null) {
+			this.keys[slot] = maskNull(key);
+			this.size++;
+			this.values[slot] = value;
+			if (this.size > this.resizeThreshold)
+				resize(this.keys.length*2);
+		} else {
+			this.values[slot] = value;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Adds delta to the value mapped to by key (which is 0 if there is
+	 * no such value)
+	 * 
+	 * @param key
+	 * @param delta
+	 * @return the new value
+	 */
+	public int increment(T key, int delta) {
+		int slot = find(key);
+		if (this.keys[slot] != null) {
+			this.values[slot] += delta;
+			return this.values[slot];
+		}
+		
+		this.keys[slot] = maskNull(key);
+		this.values[slot] = delta;
+		this.size++;
+		if (this.size > this.resizeThreshold)
+			resize(this.keys.length*2);
+		
+		return delta;
+	}
+	
+	/**
+	 * Removes all mappings to values less than minValue
+	 * 
+	 * @param minValue
+	 * @return true if the mappings have been removed
+	 */
+	public boolean retainValuesAtLeast(int minValue) {
+		Object[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+		int retainedSize = 0;
+		for (int i = 0; i < oldKeys.length; i++)
+			if (oldKeys[i] != null && oldValues[i] >= minValue)
+				retainedSize++;
+		
+		if (retainedSize == this.size)
+			return true;
+		
+		allocate(capacityFor(retainedSize));
+		for (int i = 0; i < oldKeys.length; i++)
+			if (oldKeys[i] != null && oldValues[i] >= minValue)
+				insertNew(oldKeys[i], oldValues[i]);
+		this.size = retainedSize;
+		
+		return true;
+	}
+	
+	/**
+	 * @return the number of slots in the table.  Slots can be iterated
+	 * over using isSlotUsed, getSlotKey, and getSlotValue to visit all
+	 * mappings without allocating anything.
+	 */
+	public int getSlotCount() {
+		return this.keys.length;
+	}
+	
+	public boolean isSlotUsed(int slot) {
+		return this.keys[slot] != null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public T getSlotKey(int slot) {
+		Object key = this.keys[slot];
+		return (key == NULL_KEY) ? null : (T)key;
+	}
+	
+	public int getSlotValue(int slot) {
+		return this.values[slot];
+	}
+	
+	public boolean setSlotValue(int slot, int value) {
+		this.values[slot] = value;
+		return true;
+	}
+	
+	private int find(Object key) {
+		Object maskedKey = maskNull(key);
+		int slot = hash(maskedKey) & this.mask;
+		Object slotKey;
+		while ((slotKey = this.keys[slot]) != null) {
+			if (slotKey == maskedKey || slotKey.equals(maskedKey))
+				return slot;
+			slot = (slot + 1) & this.mask;
+		}
+		return slot;
+	}
+	
+	private void insertNew(Object maskedKey, int value) {
+		int slot = hash(maskedKey) & this.mask;
+		while (this.keys[slot] != null)
+			slot = (slot + 1) & this.mask;
+		this.keys[slot] = maskedKey;
+		this.values[slot] = value;
+	}
+	
+	private void resize(int capacity) {
+		Object[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++)
+			if (oldKeys[i] != null)
+				insertNew(oldKeys[i], oldValues[i]);
+	}
+	
+	private void allocate(int capacity) {
+		this.keys = new Object[capacity];
+		this.values = new int[capacity];
+		this.mask = capacity - 1;
+		this.resizeThreshold = (capacity*3)/4;
+	}
+	
+	private static int capacityFor(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity*3/4 < expectedSize && capacity < (1 << 30))
+			capacity <<= 1;
+		return capacity;
+	}
+	
+	private static Object maskNull(Object key) {
+		return (key == null) ? NULL_KEY : key;
+	}
+	
+	private static int hash(Object key) {
+		// Spread the bits of the hash code since the table size is a power of two
+		int h = key.hashCode()*0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		str.append("{");
+		boolean first = true;
+		for (int i = 0; i < this.keys.length; i++) {
+			if (this.keys[i] == null)
+				continue;
+			if (!first)
+				str.append(", ");
+			str.append(getSlotKey(i)).append("=").append(this.values[i]);
+			first = false;
+		}
+		str.append("}");
+		return str.toString();
+	}
+}
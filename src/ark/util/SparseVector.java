@@ -0,0 +1,209 @@
+/**
+ * Copyright 2014 Bill McDowell 
+ *
+ * This file is part of theMess (https://github.com/forkunited/theMess)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy 
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package ark.util;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SparseVector represents a read-only sparse vector of real values
+ * packed into parallel arrays of indices and values.  This avoids the
+ * Integer/Double boxing and hashing costs of representing vectors
+ * as maps.
+ *
+ * A SparseVector can also be a view over a range of larger shared
+ * arrays (given by an offset and a length), so that many vectors can
+ * be packed together without copying.
+ *
+ * A vector can also be a view over int and double buffers (e.g. the 
+ * memory-mapped sections of a serialized ark.data.feature.FeatureMatrix),
+ * so that its entries are read from the buffers without being copied 
+ * onto the heap.
+ *
+ * Entries with value 1.0 (e.g. from indicator features) can be stored 
+ * as indices only.  The first getValueCount() entries of the vector have
+ * explicit values, and the remaining entries all have value 1.0, so 
+ * vectors of indicator values take a third of the memory, and products 
+ * with them are just sums over their indices.
+ *
+ * @author Bill McDowell
+ *
+ */
+public class SparseVector {
+	private int[] indices;
+	private double[] values;
+	private IntBuffer indexBuffer; // Used instead of indices and values if the vector is a view over buffers
+	private DoubleBuffer valueBuffer;
+	private int offset;
+	private int length;
+	private int valueOffset;
+	private int valueCount;
+
+	public SparseVector(int[] indices, double[] values) {
+		this(indices, values, 0, indices.length);
+	}
+
+	public SparseVector(int[] indices, double[] values, int offset, int length) {
+		this(indices, values, offset, length, offset, length);
+	}
+
+	/**
+	 * @param indices
+	 * @param values
+	 * @param offset - position of the vector's first index in indices
+	 * @param length - number of entries in the vector
+	 * @param valueOffset - position of the vector's first value in values
+	 * @param valueCount - number of entries with explicit values (the
+	 * remaining length - valueCount entries have value 1.0)
+	 */
+	public SparseVector(int[] indices, double[] values, int offset, int length, int valueOffset, int valueCount) {
+		this.indices = indices;
+		this.values = values;
+		this.offset = offset;
+		this.length = length;
+		this.valueOffset = valueOffset;
+		this.valueCount = valueCount;
+	}
+
+	/**
+	 * @param indexBuffer
+	 * @param valueBuffer
+	 * @param offset - position of the vector's first index in indexBuffer
+	 * @param length - number of entries in the vector
+	 * @param valueOffset - position of the vector's first value in valueBuffer
+	 * @param valueCount - number of entries with explicit values (the
+	 * remaining length - valueCount entries have value 1.0)
+	 */
+	public SparseVector(IntBuffer indexBuffer, DoubleBuffer valueBuffer, int offset, int length, int valueOffset, int valueCount) {
+		this.indexBuffer = indexBuffer;
+		this.valueBuffer = valueBuffer;
+		this.offset = offset;
+		this.length = length;
+		this.valueOffset = valueOffset;
+		this.valueCount = valueCount;
+	}
+
+	/**
+	 * @return the number of non-zero entries in the vector
+	 */
+	public int size() {
+		return this.length;
+	}
+
+	/**
+	 * @param i
+	 * @return the vector index of the i-th non-zero entry
+	 */
+	public int getIndex(int i) {
+		if (this.indices != null)
+			return this.indices[this.offset + i];
+		return this.indexBuffer.get(this.offset + i);
+	}
+
+	/**
+	 * @param i
+	 * @return the value of the i-th non-zero entry
+	 */
+	public double getValue(int i) {
+		if (i >= this.valueCount)
+			return 1.0;
+		if (this.values != null)
+			return this.values[this.valueOffset + i];
+		return this.valueBuffer.get(this.valueOffset + i);
+	}
+
+	/**
+	 * @return the number of entries with explicit values.  Entries 
+	 * getValueCount() through size() - 1 all have value 1.0.
+	 */
+	public int getValueCount() {
+		return this.valueCount;
+	}
+
+	/**
+	 * @return an approximation of the number of bytes taken up by
+	 * the vector's entries
+	 */
+	public long getSizeInBytes() {
+		return 4L*this.length + 8L*this.valueCount;
+	}
+
+	/**
+	 * @param indices
+	 * @param values
+	 * @return a vector containing the given entries, with the entries
+	 * that have value 1.0 moved to the end and stored as indices only
+	 */
+	public static SparseVector fromEntries(int[] indices, double[] values) {
+		int valueCount = 0;
+		for (int i = 0; i < values.length; i++)
+			if (values[i] != 1.0)
+				valueCount++;
+		
+		if (valueCount == values.length)
+			return new SparseVector(indices, values);
+		
+		int[] packedIndices = new int[indices.length];
+		double[] packedValues = new double[valueCount];
+		int j = 0, k = valueCount;
+		for (int i = 0; i < indices.length; i++) {
+			if (values[i] != 1.0) {
+				packedIndices[j] = indices[i];
+				packedValues[j] = values[i];
+				j++;
+			} else {
+				packedIndices[k] = indices[i];
+				k++;
+			}
+		}
+		
+		return new SparseVector(packedIndices, packedValues, 0, packedIndices.length, 0, valueCount);
+	}
+
+	public Map<Integer, Double> toMap() {
+		Map<Integer, Double> map = new HashMap<Integer, Double>(this.length*2);
+		for (int i = 0; i < this.length; i++)
+			map.put(getIndex(i), getValue(i));
+		return map;
+	}
+
+	/**
+	 * @param map
+	 * @return a vector containing the entries of the map, sorted by index
+	 */
+	public static SparseVector fromMap(Map<Integer, Double> map) {
+		int[] indices = new int[map.size()];
+		int i = 0;
+		for (Integer index : map.keySet()) {
+			indices[i] = index;
+			i++;
+		}
+
+		Arrays.sort(indices);
+
+		double[] values = new double[indices.length];
+		for (i = 0; i < indices.length; i++)
+			values[i] = map.get(indices[i]);
+
+		return new SparseVector(indices, values);
+	}
+}
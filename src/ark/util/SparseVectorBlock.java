@@ -0,0 +1,113 @@
+/**
+ * Copyright 2014 Bill McDowell 
+ *
+ * This file is part of theMess (https://github.com/forkunited/theMess)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy 
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package ark.util;
+
+import java.util.Arrays;
+
+/**
+ * SparseVectorBlock is a columnar buffer for the sparse vectors of a 
+ * block of rows (e.g. the vectors computed by a feature for a block of 
+ * datums, see ark.data.feature.Feature.computeVectors).  The entries of
+ * all rows are appended to a single SparseVectorBuilder, and each row
+ * is a range of the builder's entries, so rows can be written in any 
+ * order, and a block can be reset and reused for many blocks of rows 
+ * without allocating anything.
+ * 
+ * @author Bill McDowell
+ *
+ */
+public class SparseVectorBlock {
+	private SparseVectorBuilder entries;
+	private int[] rowStarts;
+	private int[] rowEnds;
+	private int rowCount;
+	
+	public SparseVectorBlock() {
+		this(16);
+	}
+	
+	public SparseVectorBlock(int rowCount) {
+		this.entries = new SparseVectorBuilder(rowCount*4);
+		this.rowStarts = new int[Math.max(1, rowCount)];
+		this.rowEnds = new int[this.rowStarts.length];
+		this.rowCount = rowCount;
+	}
+	
+	/**
+	 * Removes all entries, and sets the number of rows (which are all 
+	 * empty until they're set)
+	 * 
+	 * @param rowCount
+	 * @return true if the block has been reset
+	 */
+	public boolean reset(int rowCount) {
+		if (rowCount > this.rowStarts.length) {
+			this.rowStarts = new int[rowCount];
+			this.rowEnds = new int[rowCount];
+		} else {
+			Arrays.fill(this.rowStarts, 0, rowCount, 0);
+			Arrays.fill(this.rowEnds, 0, rowCount, 0);
+		}
+		
+		this.rowCount = rowCount;
+		this.entries.clear();
+		
+		return true;
+	}
+	
+	public int getRowCount() {
+		return this.rowCount;
+	}
+	
+	/**
+	 * @return the builder to which row entries are appended (see setRow)
+	 */
+	public SparseVectorBuilder getEntries() {
+		return this.entries;
+	}
+	
+	/**
+	 * @param row
+	 * @param start - position of the row's first entry in the builder 
+	 * returned by getEntries
+	 * @param end - position after the row's last entry
+	 * @return true if the row has been set
+	 */
+	public boolean setRow(int row, int start, int end) {
+		this.rowStarts[row] = start;
+		this.rowEnds[row] = end;
+		return true;
+	}
+	
+	public int getRowStart(int row) {
+		return this.rowStarts[row];
+	}
+	
+	public int getRowEnd(int row) {
+		return this.rowEnds[row];
+	}
+	
+	public int getIndex(int i) {
+		return this.entries.getIndex(i);
+	}
+	
+	public double getValue(int i) {
+		return this.entries.getValue(i);
+	}
+}
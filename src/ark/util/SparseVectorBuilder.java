@@ -0,0 +1,158 @@
+/**
+ * Copyright 2014 Bill McDowell 
+ *
+ * This file is part of theMess (https://github.com/forkunited/theMess)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy 
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package ark.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SparseVectorBuilder accumulates the entries of a sparse vector in 
+ * growable parallel arrays of indices and values, so that features can 
+ * append their values for a datum without allocating a map (see 
+ * ark.data.feature.Feature.computeVector(D, int, SparseVectorBuilder)).  
+ * A builder can be cleared and reused for many vectors.
+ * 
+ * Entries are kept in the order that they're added, and duplicate indices 
+ * are allowed until sortAndMerge is called.
+ * 
+ * @author Bill McDowell
+ *
+ */
+public class SparseVectorBuilder {
+	private int[] indices;
+	private double[] values;
+	private int size;
+	
+	public SparseVectorBuilder() {
+		this(16);
+	}
+	
+	public SparseVectorBuilder(int capacity) {
+		this.indices = new int[Math.max(1, capacity)];
+		this.values = new double[this.indices.length];
+		this.size = 0;
+	}
+	
+	public boolean add(int index, double value) {
+		if (this.size == this.indices.length) {
+			int capacity = this.indices.length*2;
+			this.indices = Arrays.copyOf(this.indices, capacity);
+			this.values = Arrays.copyOf(this.values, capacity);
+		}
+		
+		this.indices[this.size] = index;
+		this.values[this.size] = value;
+		this.size++;
+		
+		return true;
+	}
+	
+	public int size() {
+		return this.size;
+	}
+	
+	public int getIndex(int i) {
+		return this.indices[i];
+	}
+	
+	public double getValue(int i) {
+		return this.values[i];
+	}
+	
+	public boolean setValue(int i, double value) {
+		this.values[i] = value;
+		return true;
+	}
+	
+	public boolean clear() {
+		this.size = 0;
+		return true;
+	}
+	
+	/**
+	 * Sorts the entries by index, and merges entries with the same
+	 * index by summing their values
+	 * 
+	 * @return true if the entries have been sorted and merged
+	 */
+	public boolean sortAndMerge() {
+		if (this.size <= 1)
+			return true;
+		
+		// Sort positions by index (packed into the high bits so that ties keep their order)
+		long[] order = new long[this.size];
+		for (int i = 0; i < this.size; i++)
+			order[i] = (((long)this.indices[i]) << 32) | i;
+		Arrays.sort(order);
+		
+		int[] sortedIndices = new int[this.indices.length];
+		double[] sortedValues = new double[this.values.length];
+		int sortedSize = 0;
+		for (int i = 0; i < order.length; i++) {
+			int position = (int)order[i];
+			int index = this.indices[position];
+			if (sortedSize > 0 && sortedIndices[sortedSize - 1] == index) {
+				sortedValues[sortedSize - 1] += this.values[position];
+			} else {
+				sortedIndices[sortedSize] = index;
+				sortedValues[sortedSize] = this.values[position];
+				sortedSize++;
+			}
+		}
+		
+		this.indices = sortedIndices;
+		this.values = sortedValues;
+		this.size = sortedSize;
+		
+		return true;
+	}
+	
+	/**
+	 * @return a vector containing copies of the builder's entries (see 
+	 * ark.util.SparseVector.fromEntries)
+	 */
+	public SparseVector toVector() {
+		return SparseVector.fromEntries(Arrays.copyOf(this.indices, this.size), Arrays.copyOf(this.values, this.size));
+	}
+	
+	/**
+	 * @param start
+	 * @param end
+	 * @param indexShift
+	 * @return a vector containing copies of the entries from start (inclusive) 
+	 * to end (exclusive), with indexShift added to each index
+	 */
+	public SparseVector toVector(int start, int end, int indexShift) {
+		int[] indices = new int[end - start];
+		double[] values = new double[end - start];
+		for (int i = start; i < end; i++) {
+			indices[i - start] = this.indices[i] + indexShift;
+			values[i - start] = this.values[i];
+		}
+		return SparseVector.fromEntries(indices, values);
+	}
+	
+	public Map<Integer, Double> toMap() {
+		Map<Integer, Double> map = new HashMap<Integer, Double>(this.size*2);
+		for (int i = 0; i < this.size; i++)
+			map.put(this.indices[i], this.values[i]);
+		return map;
+	}
+}
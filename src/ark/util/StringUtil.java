@@ -21,6 +21,7 @@ package ark.util;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * 
@@ -30,6 +31,14 @@ import java.util.List;
  * 
  */
 public class StringUtil {
+	// Builders reused by each thread in clean
+	private static ThreadLocal<StringBuilder> cleanStrBuilders = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder();
+		}
+	};
+	
 	/**
 	 * @param str1
 	 * @param str2
@@ -85,8 +94,167 @@ public class StringUtil {
 		return distance[str1.length()][str2.length()];
 	}
 	
-	// FIXME: This function is messy and inefficient and really shouldn't exist
+	/**
+	 * Initial value for chaining hashes computed by hash64
+	 */
+	public static final long HASH64_SEED = 0xcbf29ce484222325L;
+	
+	/**
+	 * @param hash
+	 * @param str
+	 * @return the 64-bit FNV-1a hash of str, continuing from the given hash
+	 * so that several strings can be hashed together (start from HASH64_SEED).
+	 * Unlike String.hashCode, collisions are unlikely enough to use this for
+	 * identifying content.
+	 */
+	public static long hash64(long hash, String str) {
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			hash ^= (c & 0xFF);
+			hash *= 0x100000001b3L;
+			hash ^= (c >>> 8);
+			hash *= 0x100000001b3L;
+		}
+		
+		// Mark the end of the string so that ("ab", "c") and ("a", "bc") differ
+		hash ^= 0xFF;
+		hash *= 0x100000001b3L;
+		
+		return hash;
+	}
+	
+	/**
+	 * @param str
+	 * @param seed
+	 * @return the 32-bit MurmurHash3 (x86_32) hash of the UTF-16LE encoding 
+	 * of str.  This is useful for hashing strings into a fixed number of
+	 * buckets (e.g. for the hashing trick), since its low bits are much more 
+	 * evenly distributed than those of String.hashCode.
+	 */
+	public static int murmurHash3(String str, int seed) {
+		final int c1 = 0xcc9e2d51;
+		final int c2 = 0x1b873593;
+		
+		int hash = seed;
+		int length = str.length();
+		int i = 0;
+		for (; i + 1 < length; i += 2) {
+			int k = str.charAt(i) | (str.charAt(i + 1) << 16);
+			k *= c1;
+			k = Integer.rotateLeft(k, 15);
+			k *= c2;
+			
+			hash ^= k;
+			hash = Integer.rotateLeft(hash, 13);
+			hash = hash*5 + 0xe6546b64;
+		}
+		
+		if (i < length) {
+			int k = str.charAt(i);
+			k *= c1;
+			k = Integer.rotateLeft(k, 15);
+			k *= c2;
+			hash ^= k;
+		}
+		
+		hash ^= length*2;
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		
+		return hash;
+	}
+	
+	/**
+	 * Cleans a string by removing tokens (split on white-space) that start 
+	 * with slashes or dashes, lower-casing, removing characters other than 
+	 * ASCII letters, digits, and underscores from the remaining tokens, and 
+	 * joining the non-empty tokens with single spaces.  Single '$', '&', 
+	 * '+', and '@' characters are returned as they are.
+	 * 
+	 * This scans the string once into a reused builder, and gives exactly
+	 * the same output as the original regular-expression implementation 
+	 * (cleanByRegex), which is still used under locales whose 
+	 * lower-casing rules can map non-ASCII characters to ASCII letters 
+	 * (Turkish, Azerbaijani, and Lithuanian).
+	 * 
+	 * @param str
+	 * @return the cleaned string
+	 */
 	public static String clean(String str) {
+		String language = Locale.getDefault().getLanguage();
+		if (language.equals("tr") || language.equals("az") || language.equals("lt"))
+			return cleanByRegex(str);
+		
+		int start = 0;
+		int end = str.length();
+		while (start < end && str.charAt(start) <= ' ')
+			start++;
+		while (end > start && str.charAt(end - 1) <= ' ')
+			end--;
+		
+		if (end - start == 1) {
+			char c = str.charAt(start);
+			if (c == '$' || c == '&' || c == '+' || c == '@')
+				return str.substring(start, end);
+		}
+		
+		StringBuilder cleanStrBuilder = cleanStrBuilders.get();
+		cleanStrBuilder.setLength(0);
+		int i = start;
+		while (i < end) {
+			if (isCleanWhitespace(str.charAt(i))) {
+				i++;
+				continue;
+			}
+			
+			int tokenStart = i;
+			while (i < end && !isCleanWhitespace(str.charAt(i)))
+				i++;
+			
+			// Remove words with slashes
+			char first = str.charAt(tokenStart);
+			if (first == '/' || first == '\\' || first == '-')
+				continue;
+			
+			int tokenOutputStart = cleanStrBuilder.length();
+			if (tokenOutputStart > 0)
+				cleanStrBuilder.append(' ');
+			int tokenCharsStart = cleanStrBuilder.length();
+			
+			// Remove non alpha-numeric characters (after lower-casing)
+			for (int j = tokenStart; j < i; j++) {
+				char c = str.charAt(j);
+				if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_')
+					cleanStrBuilder.append(c);
+				else if (c >= 'A' && c <= 'Z')
+					cleanStrBuilder.append((char)(c + ('a' - 'A')));
+				else if (c == '\u0130') // Capital I with dot lower-cases to i and a combining dot
+					cleanStrBuilder.append('i');
+				else if (c == '\u212A') // Kelvin sign lower-cases to k
+					cleanStrBuilder.append('k');
+			}
+			
+			if (cleanStrBuilder.length() == tokenCharsStart)
+				cleanStrBuilder.setLength(tokenOutputStart);
+		}
+		
+		return cleanStrBuilder.toString();
+	}
+	
+	/**
+	 * @param c
+	 * @return true if c is a white-space character in the sense of the 
+	 * regular expression class \\s
+	 */
+	private static boolean isCleanWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+	
+	// FIXME: This function is messy and inefficient and really shouldn't exist
+	private static String cleanByRegex(String str) {
 		StringBuilder cleanStrBuilder = new StringBuilder();
 		
 		str = str.trim();
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2014 Bill McDowell 
+ *
+ * This file is part of theMess (https://github.com/forkunited/theMess)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy 
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT 
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the 
+ * License for the specific language governing permissions and limitations 
+ * under the License.
+ */
+
+package ark.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Vocabulary maps terms to the indices of their features.  Terms are 
+ * looked up through a primitive ark.util.ObjectIntHashMap, and indices
+ * are mapped back to terms through an array, so neither direction
+ * allocates a boxed Integer (unlike a 
+ * BidirectionalLookupTable<String, Integer>).
+ * 
+ * @author Bill McDowell
+ *
+ */
+public class Vocabulary {
+	private ObjectIntHashMap<String> forwardLookup;
+	private String[] reverseLookup;
+	
+	public Vocabulary() {
+		this.forwardLookup = new ObjectIntHashMap<String>();
+		this.reverseLookup = new String[16];
+	}
+	
+	/**
+	 * @param terms terms to index by their positions in the list 
+	 * (e.g. from ark.util.CounterTable.getSortedItems)
+	 */
+	public Vocabulary(List<String> terms) {
+		this.forwardLookup = new ObjectIntHashMap<String>(terms.size());
+		this.reverseLookup = new String[Math.max(1, terms.size())];
+		for (int i = 0; i < terms.size(); i++)
+			put(terms.get(i), i);
+	}
+	
+	public boolean containsKey(String term) {
+		return this.forwardLookup.containsKey(term);
+	}
+	
+	/**
+	 * @param term
+	 * @return the index of term, or -1 if term isn't in the vocabulary
+	 */
+	public int get(String term) {
+		return this.forwardLookup.get(term, -1);
+	}
+	
+	/**
+	 * @param index
+	 * @return the term at index, or null if there is no such term
+	 */
+	public String reverseGet(int index) {
+		if (index < 0 || index >= this.reverseLookup.length)
+			return null;
+		return this.reverseLookup[index];
+	}
+	
+	public boolean put(String term, int index) {
+		if (index >= this.reverseLookup.length)
+			this.reverseLookup = Arrays.copyOf(this.reverseLookup, Math.max(index + 1, this.reverseLookup.length*2));
+		
+		this.forwardLookup.put(term, index);
+		this.reverseLookup[index] = term;
+		
+		return true;
+	}
+	
+	public int size() {
+		return this.forwardLookup.size();
+	}
+}
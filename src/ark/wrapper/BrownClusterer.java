@@ -21,7 +21,10 @@ package ark.wrapper;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import ark.util.CommandRunner;
@@ -36,6 +39,10 @@ import ark.util.OutputWriter;
  * removed and numbers replaced with "[NUMBER]".  The cleaning step should be
  * added to this class.
  * 
+ * The clusters are loaded once into an immutable structure (see 
+ * Clusters below) that is safely published through a volatile field, so
+ * lookups from many threads don't need to lock anything.
+ * 
  * @author Bill McDowell 
  * 
  */
@@ -49,7 +56,43 @@ public class BrownClusterer {
 	private String sourceName;
 	private File clusterDocument;
 	
-	private Map<String, String> wordsToClusters;
+	private volatile Clusters clusters; // null until loaded
+	
+	/**
+	 * Clusters holds the immutable word-to-cluster map, and the prefixes
+	 * of each cluster path (see getClusterPrefixes).  Prefix strings of
+	 * the same length are shared across clusters.
+	 *
+	 */
+	private static class Clusters {
+		private final Map<String, String> wordsToClusters;
+		private final Map<String, List<String>> clusterPrefixes;
+		
+		public Clusters(Map<String, String> wordsToClusters) {
+			this.wordsToClusters = Collections.unmodifiableMap(wordsToClusters);
+			
+			Map<String, List<String>> clusterPrefixes = new HashMap<String, List<String>>();
+			Map<String, String> prefixInstances = new HashMap<String, String>();
+			for (String cluster : wordsToClusters.values()) {
+				if (clusterPrefixes.containsKey(cluster))
+					continue;
+				
+				List<String> prefixes = new ArrayList<String>();
+				for (int i = 2; i < cluster.length(); i *= 2) {
+					String prefix = cluster.substring(0, i);
+					String prefixInstance = prefixInstances.get(prefix);
+					if (prefixInstance == null) {
+						prefixInstances.put(prefix, prefix);
+						prefixInstance = prefix;
+					}
+					prefixes.add(prefixInstance);
+				}
+				
+				clusterPrefixes.put(cluster, Collections.unmodifiableList(prefixes));
+			}
+			this.clusterPrefixes = clusterPrefixes;
+		}
+	}
 	
 	public BrownClusterer(String name, String cmdPath, File sourceDocument, int numClusters, OutputWriter output) {
 		this.name = name;
@@ -64,32 +107,74 @@ public class BrownClusterer {
 			this.sourceName = sourceDocument.getName();
 		this.clusterDocument = new File(this.sourceDocument.getParentFile().getAbsolutePath(), 
 										this.sourceName + "-c" + this.numClusters + "-p1.out/paths");
-		this.wordsToClusters = null;
+		this.clusters = null;
 	}
 	
 	public String getName() {
 		return this.name;
 	}
 	
-	public synchronized String getCluster(String word) {
-		if (this.wordsToClusters == null)
-			if (!loadWordsToClusters())
-				return null;	
+	public String getCluster(String word) {
+		Clusters clusters = getClusters();
+		if (clusters == null)
+			return null;
 		
-		if (word.matches("[0-9]+"))
+		if (isNumber(word))
 			word = "[NUMBER]";
 		
-		if (!this.wordsToClusters.containsKey(word))
+		return clusters.wordsToClusters.get(word);
+	}
+	
+	/**
+	 * @param word
+	 * @return prefixes of the word's cluster path of lengths 2, 4, 8, ... 
+	 * (shorter than the full path), or null if the word has no cluster.
+	 * The prefixes are computed once when the clusters are loaded.
+	 */
+	public List<String> getClusterPrefixes(String word) {
+		Clusters clusters = getClusters();
+		if (clusters == null)
+			return null;
+		
+		String cluster = getCluster(word);
+		if (cluster == null)
 			return null;
-		return this.wordsToClusters.get(word);
+		
+		return clusters.clusterPrefixes.get(cluster);
 	}
 	
-	public synchronized Map<String, String> getClusterMap() {
-		if (this.wordsToClusters == null)
-			if (!loadWordsToClusters())
-				return null;
+	/**
+	 * @return an unmodifiable map from words to their clusters
+	 */
+	public Map<String, String> getClusterMap() {
+		Clusters clusters = getClusters();
+		if (clusters == null)
+			return null;
+		
+		return clusters.wordsToClusters;
+	}
+	
+	private Clusters getClusters() {
+		Clusters clusters = this.clusters;
+		if (clusters != null)
+			return clusters;
 		
-		return this.wordsToClusters;
+		synchronized (this) {
+			if (this.clusters == null)
+				loadWordsToClusters();
+			return this.clusters;
+		}
+	}
+	
+	private static boolean isNumber(String word) {
+		if (word.length() == 0)
+			return false;
+		for (int i = 0; i < word.length(); i++) {
+			char c = word.charAt(i);
+			if (c < '0' || c > '9')
+				return false;
+		}
+		return true;
 	}
 	
 	private synchronized boolean loadWordsToClusters() {
@@ -100,7 +185,7 @@ public class BrownClusterer {
 		if (!this.clusterDocument.exists())
 			return false;
 		
-		this.wordsToClusters = new HashMap<String, String>();
+		Map<String, String> wordsToClusters = new HashMap<String, String>();
 		
 		this.output.debugWriteln("Loading clusters for Brown clusterer " + this.name + "...");
 		
@@ -111,21 +196,21 @@ public class BrownClusterer {
 				String[] lineParts = line.split("\t");
 				if (lineParts.length < 3) {
 					br.close();
-					this.wordsToClusters = null;
 					return false;
 				}
 				String cluster = lineParts[0];
 				String word = lineParts[1];
-				this.wordsToClusters.put(word, cluster);
+				wordsToClusters.put(word, cluster);
 			}
 			br.close();
 		} catch (Exception e) {
-			this.wordsToClusters = null;
 			e.printStackTrace();
 			return false;
 		}
 		
-		this.output.debugWriteln("Loaded " + this.wordsToClusters.size() + " clusters for Brown clusterer " + this.name + ".");
+		this.clusters = new Clusters(wordsToClusters);
+		
+		this.output.debugWriteln("Loaded " + wordsToClusters.size() + " clusters for Brown clusterer " + this.name + ".");
 		
 		return true;
 	}